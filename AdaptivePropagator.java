@@ -0,0 +1,343 @@
+package demographicLanguageParser;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * Computes model quantities with an adaptive step size, instead of one generation at a time.
+ * Within each frame the state is advanced by powers of the migration matrix, and the sums over
+ * generations of the coalescence recurrence are approximated with a trapezoid rule corrected for
+ * discrete sums (Euler-Maclaurin). The error of each step is estimated comparing one step with two
+ * half steps: steps are doubled while the error is within tolerance and halved otherwise. A step of
+ * one generation is exact, so that the last generation of each frame (transitions) and the edges of
+ * coalescent ranges are always handled exactly. The last frame is not capped at TimeFrame.MAX_TIME,
+ * it is followed until all pairs have coalesced with probability 1 - tolerance.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class AdaptivePropagator {
+
+    // generations are never followed past this point
+    static final long MAX_ADAPTIVE_TIME = 1000000000L;
+    // the model
+    private DemographicLanguageParser model;
+    // error tolerance of each step
+    private double tolerance;
+    // number of accepted and rejected steps in the last computation
+    private int acceptedSteps = 0, rejectedSteps = 0;
+
+    /**
+     * Constructor
+     * @param model the model
+     * @param tolerance error tolerance of each step, relative for quantities and absolute for probabilities
+     */
+    public AdaptivePropagator(DemographicLanguageParser model, double tolerance) {
+        this.model = model;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Compute several quantities in a single pass over the time frames (see DemographicLanguageParser.computeModelQuantities)
+     * @param requests array of quantity requests (type and arguments)
+     * @return array with one symmetric matrix per request, in the same order
+     */
+    public Matrix[] computeModelQuantities(DemographicLanguageParser.QuantityRequest[] requests) throws Exception {
+        int numQueries = requests.length;
+        // generations steps end at, so that the factors at both ends of a step are those of the generations it
+        // covers. The factor of a coalescent range is 1 from ceil(a) to floor(b) included: steps end on both
+        // sides of each edge, and the step across an edge is a single (exact) generation
+        TreeSet<Long> breakpoints = new TreeSet<Long>();
+        for (DemographicLanguageParser.QuantityRequest request : requests) {
+            DemographicLanguageParser.checkQuantityArguments(request.getType(), request.getArgs(), Double.POSITIVE_INFINITY);
+            if (request.getType() == DemographicLanguageParser.QuantityType.coalescent) {
+                long first = (long) Math.ceil(request.getArgs()[0]);
+                long last = (long) Math.floor(request.getArgs()[1]);
+                breakpoints.add(first - 1);
+                breakpoints.add(first);
+                breakpoints.add(last);
+                breakpoints.add(last + 1);
+            }
+        }
+        acceptedSteps = 0;
+        rejectedSteps = 0;
+        int numPairs = Matrix.getPackedSize(model.getNumStartPops());
+        Step step = new Step(numQueries, numPairs);
+        Step half = new Step(numQueries, numPairs);
+        Step second = new Step(numQueries, numPairs);
+        // log of probability of not having coalesced, for each pair
+        double[] logNotCoal = new double[numPairs];
+        double[][] res = new double[numQueries][numPairs];
+        double[][] state = Matrix.toPrimitive(new Matrix(model.getNumStartPops()).getMat());
+        for (TimeFrame frame : model.getFrames()) {
+            boolean unbounded = frame.Gend.getValue() == Double.POSITIVE_INFINITY;
+            long end = unbounded ? MAX_ADAPTIVE_TIME : frame.intEnd;
+            double[][] migMat = Matrix.toPrimitive(frame.migration.getMigMatrix().getMat());
+            // powers of the migration matrix, migMat^(2^k)
+            ArrayList<double[][]> powers = new ArrayList<double[][]>();
+            powers.add(migMat);
+            Edge[] populations = frame.migration.populationsFrom;
+            long t = frame.intStart;
+            // coalescence at the start of the frame, continuing the sizes of this frame
+            double[] coal = getCoalescence(state, populations, t);
+            long h = 1;
+            // all generations but the last one, which may have transitions
+            while (t < end - 1) {
+                if (unbounded && getMaxNotCoal(logNotCoal) <= tolerance) {
+                    break;
+                }
+                long limit = end - 1;
+                Long next = breakpoints.ceiling(t + 1);
+                if (next != null && next < limit) {
+                    limit = next;
+                }
+                h = Math.max(1, Math.min(h, limit - t));
+                while (true) {
+                    if (h == 1) {
+                        double[][] newState = Matrix.multiply(state, migMat, model.getPool());
+                        double[] newCoal = getCoalescence(newState, populations, t + 1);
+                        evaluate(requests, t, coal, t + 1, newCoal, logNotCoal, step);
+                        state = newState;
+                        coal = newCoal;
+                        break;
+                    }
+                    long mid = t + h / 2;
+                    double[][] midState = applyPower(state, powers, mid - t);
+                    double[] midCoal = getCoalescence(midState, populations, mid);
+                    double[][] endState = applyPower(midState, powers, t + h - mid);
+                    double[] endCoal = getCoalescence(endState, populations, t + h);
+                    evaluate(requests, t, coal, t + h, endCoal, logNotCoal, step);
+                    evaluate(requests, t, coal, mid, midCoal, logNotCoal, half);
+                    evaluate(requests, mid, midCoal, t + h, endCoal, half.logNotCoal, second);
+                    second.addContributions(half);
+                    if (step.isWithinTolerance(second, res, tolerance)) {
+                        // keep the more accurate estimate
+                        step.copy(second);
+                        state = endState;
+                        coal = endCoal;
+                        break;
+                    }
+                    rejectedSteps++;
+                    h /= 2;
+                }
+                acceptedSteps++;
+                t += h;
+                System.arraycopy(step.logNotCoal, 0, logNotCoal, 0, numPairs);
+                for (int q = 0; q < numQueries; q++) {
+                    for (int p = 0; p < numPairs; p++) {
+                        res[q][p] += step.contributions[q][p];
+                    }
+                }
+                h *= 2;
+            }
+            if (unbounded) {
+                break;
+            }
+            // last generation of the frame, as in TimeFrame.computePackedCoalescenceVector
+            state = Matrix.multiply(state, migMat, model.getPool());
+            double[] sizes = new double[populations.length];
+            for (int i = 0; i < populations.length; i++) {
+                sizes[i] = populations[i].getSizeAt(frame.Gend.getValue());
+            }
+            if (frame.transitions != null) {
+                for (MigrationMatrix transition : frame.transitions) {
+                    state = Matrix.multiply(state, Matrix.toPrimitive(transition.getMigMatrix().getMat()), model.getPool());
+                }
+                populations = frame.transitions.get(frame.transitions.size() - 1).populationsTo;
+                sizes = new double[populations.length];
+                for (int i = 0; i < populations.length; i++) {
+                    sizes[i] = populations[i].getSizeAt(frame.intEnd);
+                }
+            }
+            double[] lastCoal = getCoalescence(state, sizes);
+            for (int q = 0; q < numQueries; q++) {
+                double factor = getFactor(requests[q], frame.intEnd);
+                for (int p = 0; p < numPairs; p++) {
+                    res[q][p] += lastCoal[p] * Math.exp(logNotCoal[p]) * factor;
+                }
+            }
+            for (int p = 0; p < numPairs; p++) {
+                logNotCoal[p] += Math.log1p(-lastCoal[p]);
+            }
+            acceptedSteps++;
+        }
+        Matrix[] results = new Matrix[numQueries];
+        for (int q = 0; q < numQueries; q++) {
+            results[q] = Matrix.fromPacked(res[q], model.getNumStartPops());
+        }
+        return results;
+    }
+
+    /**
+     * Approximates the sums over generations from+1 to to (included), given values at the two ends
+     * @param requests the requests
+     * @param from first end
+     * @param coalFrom coalescence at from
+     * @param to second end
+     * @param coalTo coalescence at to
+     * @param logNotCoal log of probability of not having coalesced at from
+     * @param step filled with the log of probability of not having coalesced at to, and contributions
+     */
+    private void evaluate(DemographicLanguageParser.QuantityRequest[] requests, long from, double[] coalFrom,
+            long to, double[] coalTo, double[] logNotCoal, Step step) {
+        double h = to - from;
+        double[] factorFrom = new double[requests.length];
+        double[] factorTo = new double[requests.length];
+        for (int q = 0; q < requests.length; q++) {
+            factorFrom[q] = getFactor(requests[q], from);
+            factorTo[q] = getFactor(requests[q], to);
+        }
+        for (int p = 0; p < logNotCoal.length; p++) {
+            double logFrom = Math.log1p(-coalFrom[p]);
+            double logTo = Math.log1p(-coalTo[p]);
+            // sum of log(1 - c) over generations from+1 .. to
+            double newLog = logNotCoal[p] + h * (logFrom + logTo) / 2.0 + (logTo - logFrom) / 2.0;
+            step.logNotCoal[p] = newLog;
+            // probability of coalescing at each end, not having coalesced before
+            double weightFrom = coalFrom[p] * Math.exp(logNotCoal[p] - logFrom);
+            double weightTo = coalTo[p] * Math.exp(newLog - logTo);
+            for (int q = 0; q < requests.length; q++) {
+                double wFrom = weightFrom * factorFrom[q];
+                double wTo = weightTo * factorTo[q];
+                step.contributions[q][p] = h * (wFrom + wTo) / 2.0 + (wTo - wFrom) / 2.0;
+            }
+        }
+    }
+
+    /**
+     * Weight of coalescence at a generation (see DemographicLanguageParser.fillQuantityFactors)
+     * @param request the request
+     * @param g the generation
+     * @return the weight
+     */
+    private double getFactor(DemographicLanguageParser.QuantityRequest request, long g) {
+        double[] factor = new double[1];
+        DemographicLanguageParser.fillQuantityFactors(request.getType(), request.getArgs(), (int) g, factor);
+        return factor[0];
+    }
+
+    /**
+     * Computes the probability of coalescence in a generation for each pair
+     * @param state probability of each lineage being in each population
+     * @param populations populations of the state
+     * @param time the generation, used for the sizes
+     * @return packed probabilities
+     */
+    private double[] getCoalescence(double[][] state, Edge[] populations, long time) throws Exception {
+        double[] sizes = new double[populations.length];
+        for (int i = 0; i < populations.length; i++) {
+            sizes[i] = populations[i].getSizeAt(Math.min(time, populations[i].getN2().getGen().getValue()));
+        }
+        return getCoalescence(state, sizes);
+    }
+
+    /**
+     * Computes the probability of coalescence in a generation for each pair
+     * @param state probability of each lineage being in each population
+     * @param sizes size of each population
+     * @return packed probabilities
+     */
+    private double[] getCoalescence(double[][] state, double[] sizes) throws Exception {
+        Double[] boxed = new Double[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            boxed[i] = sizes[i];
+        }
+        return Matrix.multiplyDiagSelfPacked(state, boxed, model.getPool());
+    }
+
+    /**
+     * Advances the state by a number of generations, using powers of the migration matrix
+     * @param state the state
+     * @param powers powers of the migration matrix, extended as needed
+     * @param generations number of generations
+     * @return the new state
+     */
+    private double[][] applyPower(double[][] state, ArrayList<double[][]> powers, long generations) throws Exception {
+        for (int k = 0; generations > 0; k++, generations >>= 1) {
+            if (k == powers.size()) {
+                double[][] last = powers.get(k - 1);
+                powers.add(Matrix.multiply(last, last, model.getPool()));
+            }
+            if ((generations & 1) == 1) {
+                state = Matrix.multiply(state, powers.get(k), model.getPool());
+            }
+        }
+        return state;
+    }
+
+    // largest probability of not having coalesced over all pairs
+    private static double getMaxNotCoal(double[] logNotCoal) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double l : logNotCoal) {
+            max = Math.max(max, l);
+        }
+        return Math.exp(max);
+    }
+
+    /**
+     * @return the number of accepted steps in the last computation
+     */
+    public int getAcceptedSteps() {
+        return acceptedSteps;
+    }
+
+    /**
+     * @return the number of rejected steps in the last computation
+     */
+    public int getRejectedSteps() {
+        return rejectedSteps;
+    }
+
+    /**
+     * @return the tolerance
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Result of a step: probability of not having coalesced at its end and contribution to each quantity
+     */
+    private static class Step {
+
+        // log of probability of not having coalesced, for each pair
+        final double[] logNotCoal;
+        // contribution to each request, for each pair
+        final double[][] contributions;
+
+        Step(int numQueries, int numPairs) {
+            logNotCoal = new double[numPairs];
+            contributions = new double[numQueries][numPairs];
+        }
+
+        // adds contributions of an earlier part of the step
+        void addContributions(Step other) {
+            for (int q = 0; q < contributions.length; q++) {
+                for (int p = 0; p < logNotCoal.length; p++) {
+                    contributions[q][p] += other.contributions[q][p];
+                }
+            }
+        }
+
+        // compares with a more accurate estimate of the same step
+        boolean isWithinTolerance(Step other, double[][] res, double tolerance) {
+            for (int p = 0; p < logNotCoal.length; p++) {
+                if (Math.abs(Math.exp(logNotCoal[p]) - Math.exp(other.logNotCoal[p])) > tolerance) {
+                    return false;
+                }
+                for (int q = 0; q < contributions.length; q++) {
+                    double scale = Math.abs(res[q][p]) + Math.abs(other.contributions[q][p]);
+                    if (Math.abs(contributions[q][p] - other.contributions[q][p]) > tolerance * scale) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void copy(Step other) {
+            System.arraycopy(other.logNotCoal, 0, logNotCoal, 0, logNotCoal.length);
+            for (int q = 0; q < contributions.length; q++) {
+                System.arraycopy(other.contributions[q], 0, contributions[q], 0, contributions[q].length);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package demographicLanguageParser;
+
+/**
+ * Inner loops over primitive arrays used by the accumulation of quantities and by matrix kernels.
+ * This class is the scalar implementation. An implementation based on the jdk.incubator.vector module
+ * (VectorArrayKernels, in the vector directory) is used instead when it was compiled and the module is
+ * available at run time (java --add-modules jdk.incubator.vector). Otherwise, or if the system property
+ * demographicLanguageParser.vector is false, the scalar implementation is used.
+ * The vector implementation gives the same results, except for factor tables (exponentials) and dot
+ * products (order of the sum), which may differ in the last bits.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+class ArrayKernels {
+
+    // name of the vector implementation, loaded by reflection so that this class compiles without the module
+    static final String VECTOR_IMPLEMENTATION = "demographicLanguageParser.VectorArrayKernels";
+    // the kernels used by all models
+    private static final ArrayKernels instance = load();
+
+    // the vector implementation if available and not disabled, the scalar one otherwise
+    private static ArrayKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("demographicLanguageParser.vector", "true"))) {
+            return new ArrayKernels();
+        }
+        try {
+            return (ArrayKernels) Class.forName(VECTOR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            // not compiled
+            return new ArrayKernels();
+        } catch (LinkageError e) {
+            // compiled, but the module is not available
+            return new ArrayKernels();
+        }
+    }
+
+    /**
+     * @return the kernels used by all models
+     */
+    static ArrayKernels get() {
+        return instance;
+    }
+
+    /**
+     * @return true if the kernels use the jdk.incubator.vector module
+     */
+    boolean isVectorized() {
+        return false;
+    }
+
+    /**
+     * Fills the factors of expectedFraction at consecutive generations (see DemographicLanguageParser.fillQuantityFactors)
+     * @param u from length
+     * @param v to length
+     * @param firstGen the generation of the first entry
+     * @param factors the table to be filled
+     */
+    void fillFractionFactors(double u, double v, int firstGen, double[] factors) {
+        for (int j = 0; j < factors.length; j++) {
+            int g = firstGen + j;
+            factors[j] = 1. / 50. * (Math.exp(-g * u / 50.) * (50. + g * u)
+                    - Math.exp(-g * v / 50.) * (50. + g * v));
+        }
+    }
+
+    /**
+     * Fills the factors of expectedNumberOfSegments at consecutive generations (see DemographicLanguageParser.fillQuantityFactors)
+     * @param u from length
+     * @param v to length
+     * @param G genome size
+     * @param firstGen the generation of the first entry
+     * @param factors the table to be filled
+     */
+    void fillSegmentFactors(double u, double v, double G, int firstGen, double[] factors) {
+        for (int j = 0; j < factors.length; j++) {
+            int g = firstGen + j;
+            factors[j] = 2 * (Math.exp(-2 * g * u) - Math.exp(-2 * g * v)) * G * g;
+        }
+    }
+
+    /**
+     * One generation of the plain recurrence: newCoal = coal * probNotCoal, probCoal += newCoal,
+     * probNotCoal = 1 - probCoal
+     * @param coal probability of coalescing at this generation, for lineages that have not coalesced
+     * @param probCoal probability of having coalesced, updated
+     * @param probNotCoal probability of not having coalesced, updated
+     * @param newCoal probability of coalescing at this generation, filled
+     * @param n number of entries
+     */
+    void updateCoalescence(double[] coal, double[] probCoal, double[] probNotCoal, double[] newCoal, int n) {
+        for (int p = 0; p < n; p++) {
+            newCoal[p] = coal[p] * probNotCoal[p];
+            probCoal[p] += newCoal[p];
+            probNotCoal[p] = 1.0 - probCoal[p];
+        }
+    }
+
+    /**
+     * Adds a multiple of an array to another: y += a * x on a range of entries
+     * @param a the multiplier
+     * @param x the array added
+     * @param y the array updated
+     * @param from first entry (included)
+     * @param to last entry (excluded)
+     */
+    void axpy(double a, double[] x, double[] y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            y[i] += a * x[i];
+        }
+    }
+
+    /**
+     * returns the dot product of the first n entries of two arrays
+     * @param x the first array
+     * @param y the second array
+     * @param n number of entries
+     * @return the dot product
+     */
+    double dot(double[] x, double[] y, int n) {
+        double sum = 0.0;
+        for (int k = 0; k < n; k++) {
+            sum += x[k] * y[k];
+        }
+        return sum;
+    }
+}
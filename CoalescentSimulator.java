@@ -0,0 +1,323 @@
+package demographicLanguageParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Simulates the genealogy of pairs of lineages under a demographic model, in discrete generations.
+ * Going back in time, at each generation both lineages migrate according to the migration matrix of
+ * the current frame (and to the transition matrices at the end of the frame), then coalesce with
+ * probability 1/N if they are in the same population of size N. This is the process whose probabilities
+ * are computed by DemographicLanguageParser.computeModelQuantity, and can be used to validate it or to
+ * generate bootstrap replicates. Frames are copied to primitive arrays when the simulator is built, so
+ * parameters changed afterwards are not seen.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class CoalescentSimulator {
+
+    // compiled frames
+    private SimulationFrame[] frames;
+    // number of populations at generation 0
+    private int numStartPops;
+
+    /**
+     * Constructor, copies the frames of the model
+     * @param model the model
+     * @throws Exception
+     */
+    public CoalescentSimulator(DemographicLanguageParser model) throws Exception {
+        this.numStartPops = model.getNumStartPops();
+        this.frames = new SimulationFrame[model.getFrames().size()];
+        for (int f = 0; f < frames.length; f++) {
+            frames[f] = new SimulationFrame(model.getFrames().get(f));
+        }
+    }
+
+    /**
+     * Simulates pairs of lineages sampled from two populations at generation 0
+     * @param pop1 index of the population of the first lineage (as in getPopsAt0())
+     * @param pop2 index of the population of the second lineage
+     * @param numPairs number of pairs to be simulated
+     * @param numThreads number of threads
+     * @param seed seed of the random generators
+     * @return distribution of coalescence times
+     */
+    public SimulationResult simulate(final int pop1, final int pop2, long numPairs, int numThreads, long seed) throws Exception {
+        if (pop1 < 0 || pop1 >= numStartPops || pop2 < 0 || pop2 >= numStartPops) {
+            throw new Exception("populations must be between 0 and " + (numStartPops - 1));
+        }
+        numThreads = Math.max(1, numThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            SplittableRandom root = new SplittableRandom(seed);
+            ArrayList<Callable<SimulationResult>> tasks = new ArrayList<Callable<SimulationResult>>();
+            for (int t = 0; t < numThreads; t++) {
+                final SplittableRandom random = root.split();
+                final long pairs = numPairs / numThreads + ((t < numPairs % numThreads) ? 1 : 0);
+                tasks.add(new Callable<SimulationResult>() {
+
+                    public SimulationResult call() throws Exception {
+                        // each thread accumulates in its own result, merged at the end
+                        SimulationResult result = new SimulationResult();
+                        for (long i = 0; i < pairs; i++) {
+                            result.add(simulatePair(pop1, pop2, random));
+                        }
+                        return result;
+                    }
+                });
+            }
+            List<Future<SimulationResult>> results = executor.invokeAll(tasks);
+            SimulationResult total = new SimulationResult();
+            for (Future<SimulationResult> f : results) {
+                total.merge(f.get());
+            }
+            return total;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Simulates the coalescence time of a pair of lineages
+     * @param a population of the first lineage
+     * @param b population of the second lineage
+     * @param random random generator
+     * @return the generation of coalescence, or -1 if the lineages did not coalesce before TimeFrame.MAX_TIME
+     */
+    int simulatePair(int a, int b, SplittableRandom random) {
+        for (SimulationFrame frame : frames) {
+            int length = frame.invSizes.length;
+            int j = 0;
+            // single population of constant size: waiting time until coalescence is geometric
+            if (frame.isSinglePopulation && frame.hasConstantSize) {
+                double p = frame.invSizes[0][0];
+                // no coalescence in the frame if the size is infinite, waits longer than the frame are clamped
+                long wait = length;
+                if (p >= 1.0) {
+                    wait = 1;
+                } else if (p > 0.0) {
+                    wait = (long) Math.min(length, 1 + Math.floor(Math.log(1.0 - random.nextDouble()) / Math.log1p(-p)));
+                }
+                if (wait < length) {
+                    return frame.intStart + (int) wait;
+                }
+                // no coalescence before the last generation of the frame, which may have transitions
+                j = length - 1;
+            }
+            for (; j < length; j++) {
+                a = frame.sampleMigration(a, random);
+                b = frame.sampleMigration(b, random);
+                if (j == length - 1) {
+                    for (int t = 0; t < frame.transitions.length; t++) {
+                        a = frame.transitions[t][a].sample(random);
+                        b = frame.transitions[t][b].sample(random);
+                    }
+                }
+                if (a == b && random.nextDouble() < frame.invSizes[j][a]) {
+                    return frame.intStart + j + 1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A time frame copied to primitive arrays
+     */
+    static class SimulationFrame {
+
+        // first generation of the frame
+        final int intStart;
+        // alias tables of the rows of the migration matrix
+        final AliasTable[] migration;
+        // true if no lineage ever migrates in this frame
+        final boolean noMigration;
+        // alias tables of the rows of the transition matrices, applied at the last generation
+        final AliasTable[][] transitions;
+        // inverse of population sizes, for each generation of the frame
+        final double[][] invSizes;
+        // true if there is only one population in the frame, at all generations
+        final boolean isSinglePopulation;
+        // true if sizes are the same at all generations of the frame
+        final boolean hasConstantSize;
+
+        SimulationFrame(TimeFrame frame) throws Exception {
+            this.intStart = frame.intStart;
+            this.migration = frame.migration.getAliasTables();
+            boolean identity = true;
+            Double[][] migMat = frame.migration.getMigMatrix().getMat();
+            for (int i = 0; i < migMat.length; i++) {
+                for (int j = 0; j < migMat[i].length; j++) {
+                    if (j != i && migMat[i][j] > 0.0) {
+                        identity = false;
+                    }
+                }
+            }
+            this.noMigration = identity;
+            int numTransitions = (frame.transitions == null) ? 0 : frame.transitions.size();
+            this.transitions = new AliasTable[numTransitions][];
+            for (int t = 0; t < numTransitions; t++) {
+                transitions[t] = frame.transitions.get(t).getAliasTables();
+            }
+            int length = frame.intEnd - frame.intStart;
+            this.invSizes = new double[length][];
+            Edge[] populations = frame.migration.populationsFrom;
+            for (int j = 0; j < length; j++) {
+                double time = (j < length - 1) ? frame.intStart + j + 1 : frame.Gend.getValue();
+                if (j == length - 1 && numTransitions > 0) {
+                    populations = frame.transitions.get(numTransitions - 1).populationsTo;
+                    time = frame.intEnd;
+                }
+                invSizes[j] = new double[populations.length];
+                for (int i = 0; i < populations.length; i++) {
+                    invSizes[j][i] = 1.0 / populations[i].getSizeAt(time);
+                }
+            }
+            this.isSinglePopulation = (migration.length == 1 && numTransitions == 0);
+            boolean constant = true;
+            for (int j = 1; j < length; j++) {
+                for (int i = 0; i < invSizes[j].length; i++) {
+                    if (invSizes[j].length != invSizes[0].length || invSizes[j][i] != invSizes[0][i]) {
+                        constant = false;
+                    }
+                }
+            }
+            this.hasConstantSize = constant;
+        }
+
+        // samples the population of a lineage after one generation of migration
+        int sampleMigration(int pop, SplittableRandom random) {
+            return noMigration ? pop : migration[pop].sample(random);
+        }
+    }
+
+    /**
+     * Distribution of simulated coalescence times
+     */
+    public static class SimulationResult {
+
+        // number of pairs that coalesced at each generation
+        private long[] coalescenceCounts = new long[TimeFrame.MAX_TIME + 1];
+        // number of pairs that did not coalesce
+        private long numCensored = 0;
+        // number of simulated pairs
+        private long numPairs = 0;
+
+        // adds a simulated coalescence time (-1 if not coalesced)
+        void add(int generation) {
+            numPairs++;
+            if (generation < 0) {
+                numCensored++;
+            } else {
+                coalescenceCounts[generation]++;
+            }
+        }
+
+        // adds results of another simulation
+        void merge(SimulationResult other) {
+            for (int g = 0; g < coalescenceCounts.length; g++) {
+                coalescenceCounts[g] += other.coalescenceCounts[g];
+            }
+            numCensored += other.numCensored;
+            numPairs += other.numPairs;
+        }
+
+        /**
+         * fraction of pairs that coalesced at each generation
+         * @return empirical probability of coalescence at each generation (index is the generation)
+         */
+        public double[] getCoalescenceDistribution() {
+            double[] distribution = new double[coalescenceCounts.length];
+            for (int g = 0; g < coalescenceCounts.length; g++) {
+                distribution[g] = (double) coalescenceCounts[g] / numPairs;
+            }
+            return distribution;
+        }
+
+        /**
+         * fraction of pairs that coalesced within a range of generations (included)
+         * @param from first generation
+         * @param to last generation
+         * @return empirical probability of coalescence in range
+         */
+        public double getCoalescenceProbability(int from, int to) {
+            long count = 0;
+            for (int g = Math.max(0, from); g <= Math.min(to, coalescenceCounts.length - 1); g++) {
+                count += coalescenceCounts[g];
+            }
+            return (double) count / numPairs;
+        }
+
+        /**
+         * Samples the total number of IBD segments in a length bin shared by all simulated pairs. A pair that
+         * coalesced at generation g shares a Poisson number of segments with the same mean used by
+         * expectedNumberOfSegments, so the total is Poisson with the sum of the means of all pairs.
+         * @param from shortest length (Morgans)
+         * @param to longest length (Morgans)
+         * @param genomeSize genome size (Morgans)
+         * @param random random generator
+         * @return number of segments
+         */
+        public long sampleSegmentCount(double from, double to, double genomeSize, SplittableRandom random) {
+            double[] factors = new double[coalescenceCounts.length - 1];
+            DemographicLanguageParser.fillQuantityFactors(DemographicLanguageParser.QuantityType.expectedNumberOfSegments,
+                    new double[]{from, to, genomeSize}, 1, factors);
+            double mean = 0.0;
+            for (int g = 1; g < coalescenceCounts.length; g++) {
+                mean += coalescenceCounts[g] * factors[g - 1];
+            }
+            return samplePoisson(mean, random);
+        }
+
+        /**
+         * @return the number of pairs that coalesced at each generation
+         */
+        public long[] getCoalescenceCounts() {
+            return coalescenceCounts;
+        }
+
+        /**
+         * @return the numCensored
+         */
+        public long getNumCensored() {
+            return numCensored;
+        }
+
+        /**
+         * @return the numPairs
+         */
+        public long getNumPairs() {
+            return numPairs;
+        }
+    }
+
+    /**
+     * Samples from a Poisson distribution, using a normal approximation for large means
+     * @param mean the mean
+     * @param random random generator
+     * @return the sample
+     */
+    static long samplePoisson(double mean, SplittableRandom random) {
+        if (mean <= 0.0) {
+            return 0;
+        }
+        if (mean > 1000.0) {
+            // Box-Muller
+            double gaussian = Math.sqrt(-2.0 * Math.log(1.0 - random.nextDouble())) * Math.cos(2.0 * Math.PI * random.nextDouble());
+            return Math.max(0, Math.round(mean + Math.sqrt(mean) * gaussian));
+        }
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        long count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+}
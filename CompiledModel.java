@@ -0,0 +1,308 @@
+package demographicLanguageParser;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Immutable snapshot of a demographic model, with frames, matrices and sizes copied to primitive arrays.
+ * A snapshot can be queried by any number of threads without locks, while the parsed model it was
+ * compiled from is modified. Compiling a model again after a change of parameters shares the frames
+ * that did not change with the previous snapshot. The accumulation mode and truncation tolerance of the
+ * model are part of the snapshot; models using adaptive steps cannot be compiled.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public final class CompiledModel {
+
+    // compiled frames, in order of time
+    private final CompiledFrame[] frames;
+    // names of the populations at generation 0, in the order of query results
+    private final String[] popNames;
+    // values of all parameters when the snapshot was compiled
+    private final SortedMap<String, Double> parameterValues;
+    // accumulation settings of the model when the snapshot was compiled
+    private final DemographicLanguageParser.AccumulationMode accumulationMode;
+    private final double truncationTolerance;
+
+    private CompiledModel(CompiledFrame[] frames, String[] popNames, SortedMap<String, Double> parameterValues,
+            DemographicLanguageParser.AccumulationMode accumulationMode, double truncationTolerance) {
+        this.frames = frames;
+        this.popNames = popNames;
+        this.parameterValues = parameterValues;
+        this.accumulationMode = accumulationMode;
+        this.truncationTolerance = truncationTolerance;
+    }
+
+    /**
+     * Compiles the current frames of a model. The model has to be rebuilt after its parameters are changed.
+     * @param model the model
+     * @return the snapshot
+     */
+    public static CompiledModel compile(DemographicLanguageParser model) throws Exception {
+        return compile(model, null);
+    }
+
+    /**
+     * Compiles the current frames of a model, reusing frames of a previous snapshot that are identical
+     * @param model the model
+     * @param previous a previous snapshot, or null
+     * @return the snapshot
+     */
+    public static CompiledModel compile(DemographicLanguageParser model, CompiledModel previous) throws Exception {
+        if (model.getAdaptiveTolerance() > 0.0) {
+            throw new Exception("Models using adaptive steps cannot be compiled (adaptive tolerance "
+                    + model.getAdaptiveTolerance() + ").");
+        }
+        CompiledFrame[] frames = new CompiledFrame[model.getFrames().size()];
+        for (int f = 0; f < frames.length; f++) {
+            frames[f] = new CompiledFrame(model.getFrames().get(f));
+            if (previous != null && f < previous.frames.length && frames[f].isSameAs(previous.frames[f])) {
+                frames[f] = previous.frames[f];
+            }
+        }
+        Edge[] popsAt0 = model.getPopsAt0();
+        String[] popNames = new String[popsAt0.length];
+        for (int i = 0; i < popsAt0.length; i++) {
+            popNames[i] = popsAt0[i].getId();
+        }
+        TreeMap<String, Double> values = new TreeMap<String, Double>();
+        for (Parameter p : model.getParameters().values()) {
+            values.put(p.getId(), p.getValue());
+        }
+        return new CompiledModel(frames, popNames, Collections.unmodifiableSortedMap(values), model.getAccumulationMode(),
+                model.getTruncationTolerance());
+    }
+
+    /**
+     * Compute a quantity (see DemographicLanguageParser.computeModelQuantity)
+     * @return matrix with quantity for each population pair
+     */
+    public Matrix computeModelQuantity(DemographicLanguageParser.QuantityType type, double[] args) throws Exception {
+        return computeModelQuantities(new DemographicLanguageParser.QuantityRequest[]{
+                    new DemographicLanguageParser.QuantityRequest(type, args)}, null)[0];
+    }
+
+    /**
+     * Compute several quantities in a single pass over the frames (see DemographicLanguageParser.computeModelQuantities)
+     * @param requests array of quantity requests (type and arguments)
+     * @param pool thread pool used by matrix kernels, null for sequential computation
+     * @return array with one symmetric matrix per request, in the same order
+     */
+    public Matrix[] computeModelQuantities(DemographicLanguageParser.QuantityRequest[] requests, ForkJoinPool pool) throws Exception {
+        for (DemographicLanguageParser.QuantityRequest request : requests) {
+            DemographicLanguageParser.checkQuantityArguments(request.getType(), request.getArgs());
+        }
+        int numStartPops = popNames.length;
+        QuantityAccumulator acc = new QuantityAccumulator(requests, numStartPops, accumulationMode, truncationTolerance);
+        double[][] state = new double[numStartPops][numStartPops];
+        for (int i = 0; i < numStartPops; i++) {
+            state[i][i] = 1.0;
+        }
+        for (int f = 0; f < frames.length && !acc.isFinished(); f++) {
+            CompiledFrame frame = frames[f];
+            if (frame.hasSegmentsTail) {
+                acc.addSegmentsTail(frame.tailSize, frame.intStart);
+                if (acc.isFinished()) {
+                    break;
+                }
+            }
+            int length = frame.invSizes.length;
+            int chunk = acc.getChunk(length);
+            for (int first = 0; first < length && !acc.isFinished(); first += chunk) {
+                double[][] coal = new double[Math.min(chunk, length - first)][];
+                for (int j = first; j < first + coal.length; j++) {
+                    state = Matrix.multiply(state, frame.migration, pool);
+                    if (j == length - 1) {
+                        for (double[][] transition : frame.transitions) {
+                            state = Matrix.multiply(state, transition, pool);
+                        }
+                    }
+                    coal[j - first] = Matrix.multiplyInvDiagSelfPacked(state, frame.invSizes[j], pool);
+                }
+                acc.add(coal, null);
+                acc.checkTruncation(f < frames.length - 1 || first + chunk < length);
+            }
+        }
+        return acc.getResults();
+    }
+
+    /**
+     * @return the number of frames
+     */
+    public int getNumFrames() {
+        return frames.length;
+    }
+
+    /**
+     * returns true if a frame is shared with another snapshot
+     * @param other the other snapshot
+     * @param f index of the frame
+     * @return true if both snapshots use the same frame
+     */
+    public boolean sharesFrame(CompiledModel other, int f) {
+        return f < frames.length && f < other.frames.length && frames[f] == other.frames[f];
+    }
+
+    /**
+     * @param f index of the frame
+     * @return the frame
+     */
+    public CompiledFrame getFrame(int f) {
+        return frames[f];
+    }
+
+    /**
+     * @return names of the populations at generation 0, in the order of query results
+     */
+    public String[] getPopNames() {
+        return popNames.clone();
+    }
+
+    /**
+     * @return values of all parameters when the snapshot was compiled (read only)
+     */
+    public SortedMap<String, Double> getParameterValues() {
+        return parameterValues;
+    }
+
+    /**
+     * @return the accumulation mode of the model when the snapshot was compiled
+     */
+    public DemographicLanguageParser.AccumulationMode getAccumulationMode() {
+        return accumulationMode;
+    }
+
+    /**
+     * @return the truncation tolerance of the model when the snapshot was compiled
+     */
+    public double getTruncationTolerance() {
+        return truncationTolerance;
+    }
+
+    /**
+     * A time frame copied to primitive arrays. Never modified after construction.
+     */
+    public static final class CompiledFrame {
+
+        // first and last generation of the frame
+        private final int intStart, intEnd;
+        // the migration matrix
+        private final double[][] migration;
+        // transition matrices, applied at the last generation
+        private final double[][][] transitions;
+        // inverse of population sizes, for each generation of the frame. Consecutive equal rows are shared
+        private final double[][] invSizes;
+        // true if the number of segments in this frame is computed in closed form
+        private final boolean hasSegmentsTail;
+        // size of the population used by the closed form
+        private final double tailSize;
+
+        CompiledFrame(TimeFrame frame) throws Exception {
+            this.intStart = frame.intStart;
+            this.intEnd = frame.intEnd;
+            this.migration = Matrix.toPrimitive(frame.migration.getMigMatrix().getMat());
+            int numTransitions = (frame.transitions == null) ? 0 : frame.transitions.size();
+            this.transitions = new double[numTransitions][][];
+            for (int t = 0; t < numTransitions; t++) {
+                transitions[t] = Matrix.toPrimitive(frame.transitions.get(t).getMigMatrix().getMat());
+            }
+            // sizes as used by TimeFrame.computePackedCoalescenceVector
+            int length = intEnd - intStart;
+            this.invSizes = new double[length][];
+            Edge[] populations = frame.migration.populationsFrom;
+            for (int j = 0; j < length; j++) {
+                double time = (j < length - 1) ? intStart + j + 1 : frame.Gend.getValue();
+                if (j == length - 1 && numTransitions > 0) {
+                    populations = frame.transitions.get(numTransitions - 1).populationsTo;
+                    time = intEnd;
+                }
+                double[] row = new double[populations.length];
+                for (int i = 0; i < populations.length; i++) {
+                    row[i] = 1.0 / populations[i].getSizeAt(time);
+                }
+                invSizes[j] = (j > 0 && Arrays.equals(row, invSizes[j - 1])) ? invSizes[j - 1] : row;
+            }
+            this.hasSegmentsTail = frame.migration.populationsTo.length == 1 && intEnd == TimeFrame.MAX_TIME;
+            this.tailSize = hasSegmentsTail ? frame.migration.populationsTo[0].getN1().getSumOfOutGoing() : 0.0;
+        }
+
+        /**
+         * @return the first generation of the frame
+         */
+        public int getIntStart() {
+            return intStart;
+        }
+
+        /**
+         * @return the last generation of the frame
+         */
+        public int getIntEnd() {
+            return intEnd;
+        }
+
+        /**
+         * @return the number of populations the migration matrix applies to
+         */
+        public int getNumPops() {
+            return migration.length;
+        }
+
+        /**
+         * @param i population migrants come from
+         * @param j population migrants go to
+         * @return the probability of migrating from i to j in a generation
+         */
+        public double getMigration(int i, int j) {
+            return migration[i][j];
+        }
+
+        /**
+         * @return the number of transition matrices applied at the last generation
+         */
+        public int getNumTransitions() {
+            return transitions.length;
+        }
+
+        /**
+         * @param t index of the transition
+         * @param i population before the transition
+         * @param j population after the transition
+         * @return the probability of moving from i to j
+         */
+        public double getTransition(int t, int i, int j) {
+            return transitions[t][i][j];
+        }
+
+        /**
+         * @param j generation, counted from the start of the frame (0 is generation intStart + 1)
+         * @param i population
+         * @return the inverse of the size of population i at generation j
+         */
+        public double getInvSize(int j, int i) {
+            return invSizes[j][i];
+        }
+
+        /**
+         * @return true if the number of segments in this frame is computed in closed form
+         */
+        public boolean hasSegmentsTail() {
+            return hasSegmentsTail;
+        }
+
+        /**
+         * @return the size of the population used by the closed form, 0 if not used
+         */
+        public double getTailSize() {
+            return tailSize;
+        }
+
+        // true if the frame has the same content as another one
+        boolean isSameAs(CompiledFrame other) {
+            return intStart == other.intStart && intEnd == other.intEnd && hasSegmentsTail == other.hasSegmentsTail
+                    && tailSize == other.tailSize && Arrays.deepEquals(migration, other.migration)
+                    && Arrays.deepEquals(transitions, other.transitions) && Arrays.deepEquals(invSizes, other.invSizes);
+        }
+    }
+}
@@ -2,11 +2,18 @@ package demographicLanguageParser;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Contains a demographic object and functions to parse and query it.
@@ -79,6 +86,26 @@ public class DemographicLanguageParser {
     // *********************************************
     // number of populations at generation 0
     private int numStartPops;
+    // thread pool used to split matrix kernels within a query, null if queries are sequential
+    private ForkJoinPool pool = null;
+    // error tolerance of the adaptive step size engine, 0 to compute one generation at a time
+    private double adaptiveTolerance = 0.0;
+    // computation stops when all pairs have not coalesced with at most this probability, 0 to compute all frames
+    private double truncationTolerance = 0.0;
+    // how probabilities of coalescence are accumulated over generations
+    private AccumulationMode accumulationMode = AccumulationMode.plain;
+    // number of generations computed between checks of the truncation tolerance
+    static final int TRUNCATION_CHUNK = 64;
+    // bound on the truncation error of each request of the last computation
+    private double[] lastTruncationErrors = new double[0];
+    // registry of metrics, null if metrics are not recorded
+    private MetricsRegistry metrics = null;
+    // prepended to the names of metrics of this model
+    private String metricsPrefix = "";
+    // receives events of builds and computations, null if events are not traced
+    private TraceListener traceListener = null;
+    // prints events when debug is on and no listener is attached
+    private static final TraceListener debugTraceListener = new PrintTraceListener();
 
     /**
      * Constructor, parses demography from file
@@ -86,10 +113,77 @@ public class DemographicLanguageParser {
      * @throws Exception
      */
     public DemographicLanguageParser(String filename) throws Exception {
+        this(filename, null);
+    }
 
+    /**
+     * Constructor, parses demography from file and records metrics, named after the file (see setMetrics)
+     * @param filename name of file containing demography
+     * @param metrics registry of metrics, or null
+     * @throws Exception
+     */
+    public DemographicLanguageParser(String filename, MetricsRegistry metrics) throws Exception {
+        long startNanos = System.nanoTime();
+        setMetrics(metrics, filename + ".");
         if (debug) {
             System.out.println("Parsing demographic model from file " + filename);
         }
+        initialize();
+        // open profile file for reading and start parsing
+        FileReader in = new FileReader(filename);
+        try {
+            parseCommands(in);
+        } finally {
+            in.close();
+        }
+        finishModel(startNanos);
+    }
+
+    /**
+     * Constructor, parses demography from a reader, which is not closed. Models generated in memory
+     * can be parsed without writing them to a file.
+     * @param source the demography, in the same language as model files
+     * @param metrics registry of metrics, or null
+     * @throws Exception
+     */
+    public DemographicLanguageParser(Reader source, MetricsRegistry metrics) throws Exception {
+        long startNanos = System.nanoTime();
+        setMetrics(metrics, "");
+        initialize();
+        parseCommands(source);
+        finishModel(startNanos);
+    }
+
+    /**
+     * Parses demography from a string
+     * @param source the demography, in the same language as model files
+     * @return the model
+     * @throws Exception
+     */
+    public static DemographicLanguageParser parse(CharSequence source) throws Exception {
+        return new DemographicLanguageParser(new StringReader(source.toString()), null);
+    }
+
+    /**
+     * Constructor used by ModelBuilder, only creates the constants G0, Ginf, R0 and R1
+     * @param metrics registry of metrics, or null
+     */
+    DemographicLanguageParser(MetricsRegistry metrics) {
+        setMetrics(metrics, "");
+        initialize();
+    }
+
+    // resets counters and creates constants, shared by all models: only one model is parsed or built at a time
+    private void initialize() {
+        // *********************************************
+        // reset counters, so that unnamed variables are named the same way every time a file is parsed
+        // *********************************************
+        Generation.setCreated(0);
+        Size.setCreated(0);
+        Rate.setCreated(0);
+        Node.setCreated(0);
+        Edge.setCreated(0);
+        Migration.setCreated(0);
         // *********************************************
         // create generations 0 and infinity, constants
         // *********************************************
@@ -116,12 +210,11 @@ public class DemographicLanguageParser {
         allVariables.put("R1", R1);
         Rate.setR0(R0);
         Rate.setR1(R1);
-        // *********************************************
-        // open profile file for reading and start parsing
-        // *********************************************
-        // open
-        FileReader fstream = new FileReader(filename);
-        BufferedReader in = new BufferedReader(fstream);
+    }
+
+    // parses all commands read from a source
+    private void parseCommands(Reader source) throws Exception {
+        BufferedReader in = new BufferedReader(source);
         String str;
         // start parsing
         while (true) {
@@ -170,86 +263,32 @@ public class DemographicLanguageParser {
                         if (debug) {
                             System.out.println("Variable is called " + varName);
                         }
-                        if (allVariables.containsKey(varName)) {
-                            throw new Exception("Variable " + varName + " already exists");
-                        }
+                        checkVariableName(varName);
                         command = isVar[1];
                     } else {
                         throw new Exception("Malformed command: " + command);
                     }
                     if (command.startsWith("gen(")) {
                         // the command is the creation of a Generation
-                        Generation g = parseGen(args);
-                        if (varName != null) {
-                            // the name was already specified
-                            g.setName(varName);
-                            generations.put(g.getId(), g);
-                            allVariables.put(g.getId(), g);
-                        } else {
-                            // the name was not specified, will parse later
-                            generationsNoName.put(Generation.getCreated(), g);
-                        }
+                        addGeneration(varName, parseGen(args));
                     } else if (command.startsWith("size(")) {
                         // the command is the creation of a Size
-                        Size s = parseSize(args);
-                        if (varName != null) {
-                            // the name was already specified
-                            s.setName(varName);
-                            sizes.put(s.getId(), s);
-                            allVariables.put(varName, s);
-                        } else {
-                            // the name was not specified, will parse later
-                            sizesNoName.put(Size.getCreated(), s);
-                        }
+                        addSize(varName, parseSize(args));
                     } else if (command.startsWith("rate(")) {
                         // the command is the creation of a Rate
-                        Rate r = parseRate(args);
-                        if (varName != null) {
-                            // the name was already specified
-                            r.setName(varName);
-                            rates.put(r.getId(), r);
-                            allVariables.put(varName, r);
-                        } else {
-                            // the name was not specified, will parse later
-                            ratesNoName.put(Rate.getCreated(), r);
-                        }
+                        addRate(varName, parseRate(args));
                     } else if (command.startsWith("node(")) {
                         // the command is the creation of a Node
-                        Node n = parseNode(args);
-                        if (varName != null) {
-                            // the name was already specified
-                            n.setName(varName);
-                            nodes.put(n.getId(), n);
-                            allVariables.put(varName, n);
-                        } else {
-                            // the name was not specified, will parse later
-                            nodesNoName.put(Node.getCreated(), n);
-                        }
+                        addNode(varName, parseNode(args));
                     } else if (command.startsWith("edge(")) {
                         // the command is the creation of an Edge
-                        Edge e = parseEdge(args);
-                        if (varName != null) {
-                            // the name was already specified
-                            e.setName(varName);
-                            edges.put(e.getId(), e);
-                            allVariables.put(varName, e);
-                        } else {
-                            // the name was not specified, will parse later
-                            edgesNoName.put(Edge.getCreated(), e);
-                        }
+                        addEdge(varName, parseEdge(args));
                     } else if (command.startsWith("migration(")) {
                         // the command is the creation of a Migration
-                        int count = Migration.getCreated();
-                        ArrayList<Migration> mList = parseMigration(args);
                         if (varName != null) {
                             throw new Exception("migration doesn not return a handle.");
-                        } else {
-                            // the name was not specified, will parse later
-                            for (Migration m : mList) {
-                                count++;
-                                migrationsNoName.put(count, m);
-                            }
                         }
+                        parseMigration(args);
                     } else if (command.startsWith("conservation(")) {
                         parseConservation(args);
 
@@ -259,6 +298,14 @@ public class DemographicLanguageParser {
                 }
             }
         }
+    }
+
+    /**
+     * Names unnamed variables, indexes generations and parameters, and builds migration matrices.
+     * Called once all variables of the model have been created.
+     * @param startNanos time at which parsing or building started
+     */
+    void finishModel(long startNanos) throws Exception {
         // name unnamed generations
         for (Integer key : generationsNoName.keySet()) {
             String name = "GG" + key;
@@ -361,11 +408,129 @@ public class DemographicLanguageParser {
             }
         }
         // DONE PARSING
+        if (metrics != null) {
+            metrics.getTimer(metricsPrefix + "parse").recordSince(startNanos);
+        }
         // build migration matrices
         buildMigrationMatrices();
         numStartPops = Generation.getG0().getNodes().size();
     }
 
+    /**
+     * Throws an exception if a variable with a given name already exists
+     * @param varName the name
+     */
+    void checkVariableName(String varName) throws Exception {
+        if (allVariables.containsKey(varName)) {
+            throw new Exception("Variable " + varName + " already exists");
+        }
+    }
+
+    /**
+     * Adds a Generation to the model, named later (see finishModel) if varName is null
+     * @param varName the name, or null
+     * @param g the generation
+     * @return the generation
+     */
+    Generation addGeneration(String varName, Generation g) {
+        if (varName != null) {
+            // the name was already specified
+            g.setName(varName);
+            generations.put(g.getId(), g);
+            allVariables.put(g.getId(), g);
+        } else {
+            // the name was not specified, will parse later
+            generationsNoName.put(Generation.getCreated(), g);
+        }
+        return g;
+    }
+
+    /**
+     * Adds a Size to the model, named later (see finishModel) if varName is null
+     * @param varName the name, or null
+     * @param s the size
+     * @return the size
+     */
+    Size addSize(String varName, Size s) {
+        if (varName != null) {
+            // the name was already specified
+            s.setName(varName);
+            sizes.put(s.getId(), s);
+            allVariables.put(varName, s);
+        } else {
+            // the name was not specified, will parse later
+            sizesNoName.put(Size.getCreated(), s);
+        }
+        return s;
+    }
+
+    /**
+     * Adds a Rate to the model, named later (see finishModel) if varName is null
+     * @param varName the name, or null
+     * @param r the rate
+     * @return the rate
+     */
+    Rate addRate(String varName, Rate r) {
+        if (varName != null) {
+            // the name was already specified
+            r.setName(varName);
+            rates.put(r.getId(), r);
+            allVariables.put(varName, r);
+        } else {
+            // the name was not specified, will parse later
+            ratesNoName.put(Rate.getCreated(), r);
+        }
+        return r;
+    }
+
+    /**
+     * Adds a Node to the model, named later (see finishModel) if varName is null
+     * @param varName the name, or null
+     * @param n the node
+     * @return the node
+     */
+    Node addNode(String varName, Node n) {
+        if (varName != null) {
+            // the name was already specified
+            n.setName(varName);
+            nodes.put(n.getId(), n);
+            allVariables.put(varName, n);
+        } else {
+            // the name was not specified, will parse later
+            nodesNoName.put(Node.getCreated(), n);
+        }
+        return n;
+    }
+
+    /**
+     * Adds an Edge to the model, named later (see finishModel) if varName is null
+     * @param varName the name, or null
+     * @param e the edge
+     * @return the edge
+     */
+    Edge addEdge(String varName, Edge e) {
+        if (varName != null) {
+            // the name was already specified
+            e.setName(varName);
+            edges.put(e.getId(), e);
+            allVariables.put(varName, e);
+        } else {
+            // the name was not specified, will parse later
+            edgesNoName.put(Edge.getCreated(), e);
+        }
+        return e;
+    }
+
+    /**
+     * Adds a Migration to the model, named later (see finishModel)
+     * @param m the migration
+     * @return the migration
+     */
+    Migration addMigration(Migration m) {
+        migrationsNoName.put(Migration.getCreated(), m);
+        return m;
+    }
+
     /**
      * Checks the parenthetic balance of a command and returns its arguments
      * @param command string
@@ -441,16 +606,26 @@ public class DemographicLanguageParser {
         }
         // not an offset node
         double val = Double.parseDouble(args[0]);
-        if (Math.abs(val - Math.round(val)) > Parameter.getEpsilon()) {
-            throw new Exception("generations must be integer values.");
-        }
         if (args.length == 1) {
-            return new Generation(val, 0);
+            return createGeneration(val, 0);
         } else {
-            return new Generation(val, Integer.parseInt(args[1]));
+            return createGeneration(val, Integer.parseInt(args[1]));
         }
     }
 
+    /**
+     * Creates a Generation, checking that its value is an integer
+     * @param val initial value
+     * @param gridPoints number of grid points, constant if 0
+     * @return the generation
+     */
+    static Generation createGeneration(double val, int gridPoints) throws Exception {
+        if (Math.abs(val - Math.round(val)) > Parameter.getEpsilon()) {
+            throw new Exception("generations must be integer values.");
+        }
+        return new Generation(val, gridPoints);
+    }
+
     /**
      * Creates a Size object from a string command
      * @param array of strings representing command arguments (initial value, number of grid points)
@@ -577,6 +752,18 @@ public class DemographicLanguageParser {
                 throw new Exception("Size " + args[3] + " was not declared or cannot be parsed.");
             }
         }
+        return createEdge(n1, n2, s1, s2);
+    }
+
+    /**
+     * Creates an Edge and connects it to its nodes
+     * @param n1 the node at the start of the edge
+     * @param n2 the node at the end of the edge
+     * @param s1 size at the start
+     * @param s2 size at the end, same as s1 for constant populations
+     * @return the edge
+     */
+    Edge createEdge(Node n1, Node n2, Size s1, Size s2) {
         // create edge object
         Edge e = new Edge(n1, n2, s1, s2);
         // add sizes to nodes (might be used in conservation constraints)
@@ -641,7 +828,7 @@ public class DemographicLanguageParser {
                 throw new Exception("Edge " + args[i + 1] + " was not declared or cannot be parsed.");
             }
             // add new migration object
-            mList.add(new Migration(e1, e2, r));
+            mList.add(addMigration(new Migration(e1, e2, r)));
         }
         return mList;
     }
@@ -668,12 +855,24 @@ public class DemographicLanguageParser {
         if (n == null) {
             throw new Exception("Node " + args[0] + " was not declared or cannot be parsed.");
         }
+        // if there are mode arguments, they're all pivots
+        Size[] pivots = new Size[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            pivots[i - 1] = getSizes().get(args[i]);
+        }
+        addConservation(n, pivots);
+    }
+
+    /**
+     * Sets a conservation constraint for a node
+     * @param n the node
+     * @param pivots sizes of the node that are pivots of the constraint
+     */
+    void addConservation(Node n, Size[] pivots) throws Exception {
         // set conservation flag in node
         n.setConservation(true);
         getConservedNodes().add(n);
-        // if there are mode arguments, they're all pivots
-        for (int i = 1; i < args.length; i++) {
-            Size s = getSizes().get(args[i]);
+        for (Size s : pivots) {
             n.addPivot(s);
         }
     }
@@ -682,95 +881,65 @@ public class DemographicLanguageParser {
      * Prints a description of the demographic object
      */
     public void narrate() {
-        System.out.println("Once upon a time ...");
-        // will traverse chronologically from present to past. At all times a set of active
-        // edges (populations) is kept
-        TreeSet<Edge> activeEdges = new TreeSet<Edge>();
-        // There are periods of duration epsilon for which instantaneous migration matrices are speficied
-        // these are treated differently
-        TreeSet<Edge> instantaneousEdges = new TreeSet<Edge>();
-        // for all current generations, starting from present, update active edges and describe
-        Generation[] currentGenSet = getGenerationsSet().toArray(new Generation[getGenerationsSet().size()]);
-        for (int genCnt = 0; genCnt < currentGenSet.length - 1; genCnt++) {
-            Generation currentGeneration = currentGenSet[genCnt];
-            if (currentGeneration == Generation.getGinf()) {
-                break;
-            }
-            System.out.println("From generation " + currentGeneration.toString() + " to generation " + currentGenSet[genCnt + 1].toString());
-            // these are edges that have current generation as destination
-            HashSet<Edge> toBeRemoved = new HashSet<Edge>();
-            // for all active edges, sorted by terminal node time, check if expired and add to list of edges to be removed from active
-            for (Edge e : activeEdges) {
-                // next edge destination is larger, remove edge and break, since they're sorted
-                if (currentGeneration.compareTo(e.getN2().getGen()) == -1) {
-                    // since they're sorted, all others are still active
-                    break; // no need to check further
-                } else {
-                    // gen is not larger, remove inactive edge
-                    System.out.println(e.toString() + " stopped being active.");
-                    toBeRemoved.add(e);
-                }
-            }
-            // remove expired
-            activeEdges.removeAll(toBeRemoved);
-            // for all nodes of this generation, get new outgoing edges to be activated
-            System.out.println("Some populations appeared:");
-            for (Node n : currentGeneration.getNodes()) {
-                for (Edge eOut : n.getOutEdges()) {
-                    System.out.println("\t" + eOut.toString());
-                    // the end of the edge is the same as the start, it's instantaneous
-                    if (eOut.getN1().getGen().getValue() == eOut.getN2().getGen().getValue()) {
-                        instantaneousEdges.add(eOut);
-                    } else {
-                        // this one is normal
-                        activeEdges.add(eOut);
-                    }
-                }
-            }
-            // take care of instantaneour edges:
-            for (Edge e : instantaneousEdges) {
-                System.out.println("Instantaneous transition at " + currentGeneration.getId() + " " + e.getId() + " ->");
-                double sum = e.getN2().getSumOfOutGoing();
-                for (Edge eo : e.getN2().getOutEdges()) {
-                    System.out.println(eo.getId() + " prob. " + eo.getS1().getValue() / sum);
-                }
-            }
-            // clean instantaneous matrix for next iteration
-            instantaneousEdges.clear();
-            // now all others
-            // don't bother building a matrix with one element
-            if (activeEdges.size() > 1) {
-                System.out.println("Some populations were active, but not instantaneous: " + Edge.edgeSetToString(activeEdges));
-                MigrationMatrix migMat;
-                // create string that is used to index migration matrices
-                String activeEdgeString = Edge.edgeSetToString(activeEdges);
-                migMat = getMigrationMatrices().get(activeEdgeString);
-                boolean worthPrinting = false;
-                for (int i = 0; i < migMat.numPopIn; i++) {
-                    if (migMat.getMigMatrix().getMat()[i][i] < 1 - Parameter.getEpsilon()) {
-                        worthPrinting = true;
-                        break;
-                    }
-                }
-                if (!worthPrinting) {
-                    System.out.println("With no migration");
-                } else {
-                    System.out.println("These had a migration matrix:\n" + migMat.toString());
-                }
-            } else {
-                System.out.println("No migration: only one population");
+        try {
+            narrate(new OutputStreamWriter(System.out), NarrateFormat.text);
+        } catch (IOException e) {
+            // System.out records errors instead of throwing
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes a description of the time frames of the demographic object, as built by the last
+     * call to buildMigrationMatrices. The writer is flushed but not closed.
+     * @param out where the description is written
+     * @param format the format (see NarrateFormat)
+     */
+    public void narrate(Writer out, NarrateFormat format) throws IOException {
+        new Narrator(out, format).narrate(getFrames());
+    }
+
+    /**
+     * Rebuilds all structures that depend on parameter values. Must be called after parameters are updated.
+     */
+    public void rebuild() throws Exception {
+        // generations are sorted by value, which may have changed
+        TreeSet<Generation> newGenerationsSet = new TreeSet<Generation>();
+        for (Edge e : getEdges().values()) {
+            newGenerationsSet.add(e.getN1().getGen());
+            newGenerationsSet.add(e.getN2().getGen());
+        }
+        setGenerationsSet(newGenerationsSet);
+        buildMigrationMatrices();
+    }
+
+    /**
+     * returns the parameters that can be updated: not constant, and not at an offset from another generation
+     * @return free parameters, sorted by name
+     */
+    public TreeMap<String, Parameter> getFreeParameters() {
+        TreeMap<String, Parameter> free = new TreeMap<String, Parameter>();
+        for (Parameter p : getParameters().values()) {
+            if (!p.isConstant && !(p instanceof Generation && ((Generation) p).isIsOffset())) {
+                free.put(p.getId(), p);
             }
         }
+        return free;
     }
 
     /**
      * Builds migration matrices
      */
     public void buildMigrationMatrices() throws Exception {
+        long startNanos = System.nanoTime();
         ArrayList<TimeFrame> frames = new ArrayList<TimeFrame>();
-        if (debugIsOn()) {
-            System.out.println("Building migration matrices");
+        // matrices from previous builds may refer to other sets of active edges
+        getMigrationMatrices().clear();
+        getTransitionMatrices().clear();
+        for (Rate r : getRates().values()) {
+            r.getMatricesAppearsIn().clear();
         }
+        TraceListener trace = getActiveTraceListener();
         // will traverse chronologically from present to past. At all times a set of active
         // edges (populations) is kept
         TreeSet<Edge> activeEdges = new TreeSet<Edge>();
@@ -781,52 +950,29 @@ public class DemographicLanguageParser {
         Generation[] currentGenSet = getGenerationsSet().toArray(new Generation[getGenerationsSet().size()]);
         for (int genCnt = 0; genCnt < currentGenSet.length - 1; genCnt++) {
             Generation currentGeneration = currentGenSet[genCnt];
-            if (currentGeneration == Generation.getGinf()) {
+            if (currentGeneration == getGenerations().get("Ginf")) {
                 break;
             }
-            if (debugIsOn()) {
-                System.out.println("- From generation " + currentGenSet[genCnt].toString() + " to generation " + currentGenSet[genCnt + 1].toString());
-            }
             // these are edges that have current generation as destination
             TreeSet<Edge> toBeRemoved = new TreeSet<Edge>();
             // for all active edges, sorted by terminal node time, check if expired and add to list of edges to be removed from active
             for (Edge e : activeEdges) {
-                if (debugIsOn()) {
-                    System.out.println("checking out " + e);
-                }
                 // next edge destination is larger, remove edge and break, since they're sorted
                 if (currentGeneration.compareTo(e.getN2().getGen()) == -1) {
                     // since they're sorted, all others are still active
-                    if (debugIsOn()) {
-                        System.out.println("BREAK");
-                    }
                     break; // no need to check further
                 } else {
                     // gen is not larger, remove inactive edge
-                    if (debugIsOn()) {
-                        System.out.println("\tremoved " + e.toString());
-                    }
                     toBeRemoved.add(e);
                 }
             }
             // remove expired
             activeEdges.removeAll(toBeRemoved);
             // take care of normal transitions
-            if (debugIsOn()) {
-                for (Edge e : toBeRemoved) {
-                    double sum = e.getN2().getSumOfOutGoing();
-                    if (debugIsOn()) {
-                        System.out.println("Standard transition at " + currentGeneration.getId() + " " + e.getId() + " ->");
-                        for (Edge eo : e.getN2().getOutEdges()) {
-                            System.out.println("\t" + eo.getId() + " prob. " + eo.getS1().getValue() / sum);
-                        }
-                    }
-                }
-            }
             if (toBeRemoved.size() > 0) {
                 MigrationMatrix transMat = new MigrationMatrix(toBeRemoved, activeEdges);
-                if (debugIsOn()) {
-                    System.out.println("Transition " + transMat.toString());
+                if (trace != null) {
+                    trace.transitionBuilt((int) Math.round(currentGeneration.getValue()), transMat, false);
                 }
                 String matrixID = Edge.edgeSetToString(instantaneousEdges) + "_" + Edge.edgeSetToString(activeEdges);
                 getTransitionMatrices().put(matrixID, transMat);
@@ -838,9 +984,6 @@ public class DemographicLanguageParser {
             // for all nodes of this generation, get new outgoing edges to be activated
             for (Node n : currentGeneration.getNodes()) {
                 for (Edge eOut : n.getOutEdges()) {
-                    if (debugIsOn()) {
-                        System.out.println("\tadded " + eOut.toString());
-                    }
                     // the end of the edge is the same as the start, it's instantaneous
                     if (eOut.getN1().getGen().getValue() == eOut.getN2().getGen().getValue()) {
                         instantaneousEdges.add(eOut);
@@ -853,21 +996,10 @@ public class DemographicLanguageParser {
             // now add edges to active
             activeEdges.addAll(toBeAdded);
             // take care of instantaneour edges
-            if (debugIsOn()) {
-                for (Edge e : instantaneousEdges) {
-                    double sum = e.getN2().getSumOfOutGoing();
-                    if (debugIsOn()) {
-                        System.out.println("Instantaneous transition at " + currentGeneration.getId() + " " + e.getId() + " ->");
-                        for (Edge eo : e.getN2().getOutEdges()) {
-                            System.out.println("\t" + eo.getId() + " prob. " + eo.getS1().getValue() / sum);
-                        }
-                    }
-                }
-            }
             if (instantaneousEdges.size() > 0) {
                 MigrationMatrix transMat = new MigrationMatrix(instantaneousEdges, activeEdges);
-                if (debugIsOn()) {
-                    System.out.println("Transition " + transMat.toString());
+                if (trace != null) {
+                    trace.transitionBuilt((int) Math.round(currentGeneration.getValue()), transMat, true);
                 }
                 String matrixID = Edge.edgeSetToString(instantaneousEdges) + "_" + Edge.edgeSetToString(activeEdges);
                 getTransitionMatrices().put(matrixID, transMat);
@@ -876,9 +1008,7 @@ public class DemographicLanguageParser {
             }
             // clean instantaneous matrix for next iteration
             instantaneousEdges.clear();
-            if (debugIsOn()) {
-                System.out.println("Now migration from " + currentGeneration.getValue() + " to " + currentGenSet[genCnt + 1].getValue());
-            }            // now migrations for this range others
+            // now migrations for this range others
             // don't bother building a matrix with one element
             MigrationMatrix migMat;
             // create string that is used to index migration matrices
@@ -887,17 +1017,15 @@ public class DemographicLanguageParser {
             migMat = new MigrationMatrix(activeEdges);
             getMigrationMatrices().put(activeEdgeString, migMat);
             TimeFrame curentFrame = new TimeFrame(currentGenSet[genCnt], currentGenSet[genCnt + 1], migMat);
-            if (debugIsOn()) {
-                System.out.println("Matrix was created:\n" + migMat.toString());
-            }
-            for (int g = (int) Math.round(currentGeneration.getValue()) + 1; g <= (int) Math.round(currentGenSet[genCnt + 1].getValue()); g++) {
-            }
-            if (debugIsOn()) {
-                System.out.println("END period");
+            if (trace != null) {
+                trace.frameBuilt(frames.size(), curentFrame);
             }
             frames.add(curentFrame);
         }
         this.setFrames(frames);
+        if (metrics != null) {
+            metrics.getTimer(metricsPrefix + "buildMigrationMatrices").recordSince(startNanos);
+        }
     }
 
     /**
@@ -909,11 +1037,11 @@ public class DemographicLanguageParser {
         checkSizeRange();
         checkMigrationRange();
         checkNodesConservation();
-        checkMigrationMatricesSumTo1();
+        checkMigrationMatrices();
         // will throw exception otherwise
         // now check that all nodes have outgoing edges (if not at Ginf)
         for (Node n : getNodes().values()) {
-            if (n.getOutEdges().size() == 0 && n.getGen() != Generation.getGinf()) {
+            if (n.getOutEdges().size() == 0 && n.getGen() != getGenerations().get("Ginf")) {
                 throw new Exception("All nodes but the one at Ginf have to have at least one outgoing edge.");
             }
             if (n.getGen().getValue() == 0 && n.getOutEdges().size() != 1) {
@@ -922,7 +1050,7 @@ public class DemographicLanguageParser {
         }
         // now check that all edges to Ginf are constant
         for (Edge e : getEdges().values()) {
-            if (e.getN2().getGen() == Generation.getGinf() && e.getS1() != e.getS2()) {
+            if (e.getN2().getGen() == getGenerations().get("Ginf") && e.getS1() != e.getS2()) {
                 throw new Exception("All edges connected to a node at Ginf must have constant size.");
             }
             if (e.isInstantaneous() && e.getN1().getGen().getValue() == 0) {
@@ -944,10 +1072,7 @@ public class DemographicLanguageParser {
      */
     private boolean checkGenerationsRange() throws Exception {
         for (Generation g : getGenerations().values()) {
-            if (g != Generation.getGinf() && (g.getValue() <= g.getAtLeast() || g.getValue() >= g.getAtMost())) {
-                throw new Exception("generation " + g.toString() + " in not within open interval " + g.getAtLeast()
-                        + " to " + g.getAtMost() + ".");
-            }
+            checkGenerationRange(g);
         }
         if (debugIsOn()) {
             System.out.println("Generations range OK");
@@ -961,9 +1086,7 @@ public class DemographicLanguageParser {
      */
     private boolean checkSizeRange() throws Exception {
         for (Size s : getSizes().values()) {
-            if (s.getValue() < s.getMin() || s.getValue() > s.getMax()) {
-                throw new Exception("size " + s.getId() + " in not within range " + s.getMin() + " to " + s.getMax() + ".");
-            }
+            checkSizeRange(s);
         }
         if (debugIsOn()) {
             System.out.println("Sizes range OK");
@@ -977,9 +1100,7 @@ public class DemographicLanguageParser {
      */
     private boolean checkMigrationRange() throws Exception {
         for (Rate r : getRates().values()) {
-            if (r.getValue() < r.getMin() || r.getValue() > r.getMax()) {
-                throw new Exception("rate " + r.getId() + " in not within range. " + r.getMin() + " to " + r.getMax() + ".");
-            }
+            checkMigrationRange(r);
         }
         if (debugIsOn()) {
             System.out.println("Migrations range OK");
@@ -993,9 +1114,7 @@ public class DemographicLanguageParser {
      */
     private boolean checkNodesConservation() throws Exception {
         for (Node n : getConservedNodes()) {
-            if (Math.abs(n.getSumOfIncoming() - n.getSumOfOutGoing()) > Parameter.getEpsilon()) {
-                throw new Exception("Violaed conservation constraint for node " + n.getId() + " incoming: " + n.getSumOfIncoming() + " outgoing: " + n.getSumOfOutGoing());
-            }
+            checkNodeConservation(n);
         }
         if (debugIsOn()) {
             System.out.println("Node conservation OK");
@@ -1003,6 +1122,97 @@ public class DemographicLanguageParser {
         return true;
     }
 
+    /**
+     * Check only the constraints a parameter participates in: its range, the conserved nodes a size
+     * appears in (including the nodes of their pivots), the rows of the matrices a rate appears in, the
+     * bounds of a generation and of the generations at an offset from it. All other constraints are
+     * assumed to be satisfied, e.g. because checkConstraints() was called before the parameter changed.
+     * @param p the parameter
+     * @return true if all constraints involving the parameter are satisfied
+     */
+    public boolean checkConstraints(Parameter p) throws Exception {
+        if (p instanceof Generation) {
+            checkGenerationRange((Generation) p);
+        } else if (p instanceof Size) {
+            Size s = (Size) p;
+            checkSizeRange(s);
+            for (Node n : s.getNodesAppearsIn()) {
+                if (n.isConservation()) {
+                    checkNodeConservation(n);
+                }
+            }
+        } else if (p instanceof Rate) {
+            Rate r = (Rate) p;
+            checkMigrationRange(r);
+            for (MigrationMatrix m : r.getMatricesAppearsIn()) {
+                if (!m.hasValidRows()) {
+                    throw new Exception("Violated constraint in migration matrix. Rate " + r.getId() + " makes a chance of staying negative\t" + m.toString());
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check if a generation, and all generations at an offset from it, are in range
+     * @param g the generation
+     */
+    private void checkGenerationRange(Generation g) throws Exception {
+        if (g != getGenerations().get("Ginf") && (g.getValue() <= g.getAtLeast() || g.getValue() >= g.getAtMost())) {
+            throw new Exception("generation " + g.toString() + " in not within open interval " + g.getAtLeast()
+                    + " to " + g.getAtMost() + ".");
+        }
+        for (Generation offset : g.getDependentGenerations()) {
+            checkGenerationRange(offset);
+        }
+    }
+
+    /**
+     * Check if a size is in range
+     * @param s the size
+     */
+    private void checkSizeRange(Size s) throws Exception {
+        if (s.getValue() < s.getMin() || s.getValue() > s.getMax()) {
+            throw new Exception("size " + s.getId() + " in not within range " + s.getMin() + " to " + s.getMax() + ".");
+        }
+    }
+
+    /**
+     * Check if a migration rate is in range
+     * @param r the rate
+     */
+    private void checkMigrationRange(Rate r) throws Exception {
+        if (r.getValue() < r.getMin() || r.getValue() > r.getMax()) {
+            throw new Exception("rate " + r.getId() + " in not within range. " + r.getMin() + " to " + r.getMax() + ".");
+        }
+    }
+
+    /**
+     * Check if a conserved node has input=output
+     * @param n the node
+     */
+    private void checkNodeConservation(Node n) throws Exception {
+        if (!n.isConserved()) {
+            throw new Exception("Violaed conservation constraint for node " + n.getId() + " incoming: " + n.getSumOfIncoming() + " outgoing: " + n.getSumOfOutGoing());
+        }
+    }
+
+    /**
+     * Check the migration matrices built by the last call to buildMigrationMatrices: all rows sum to 1, and
+     * no chance of staying in a population is negative. Which populations coexist, and so the rows of the
+     * matrices, depends on generations: this must be called after generations change and the model is rebuilt.
+     * @return true if all matrices are valid
+     */
+    public boolean checkMigrationMatrices() throws Exception {
+        checkMigrationMatricesSumTo1();
+        for (MigrationMatrix m : getMigrationMatrices().values()) {
+            if (!m.hasValidRows()) {
+                throw new Exception("Violated constraint in migration matrix. A chance of staying is negative\t" + m.toString());
+            }
+        }
+        return true;
+    }
+
     /**
      * Check if all rows of all migration matrices sum to 1
      * @return true if all rows of all migration matrices sum to 1, false otherwise
@@ -1034,87 +1244,424 @@ public class DemographicLanguageParser {
         return getFrames().get(0).migration.populationsFrom;
     }
 
+    /**
+     * Computes a hash of everything that determines the results of queries, as built by the last call
+     * to buildMigrationMatrices: for each frame, its generations, migration and transition matrices, and
+     * the sizes of its populations. Names of variables are not part of the hash, and populations are
+     * hashed in canonical order (see ModelCanonicalizer), so models that only differ in names or in the
+     * order of commands have the same hash, as long as populations at generation 0 are in the same order.
+     * @return the hash (SHA-256, hexadecimal)
+     */
+    public String getCanonicalHash() throws Exception {
+        ModelCanonicalizer canonicalizer = new ModelCanonicalizer(this, true);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 64);
+        // format of the hashed content, to be changed if it changes
+        putHashValue(digest, buffer, 2);
+        putHashValue(digest, buffer, TimeFrame.MAX_TIME);
+        putHashValue(digest, buffer, getFrames().size());
+        for (TimeFrame frame : getFrames()) {
+            putHashValue(digest, buffer, frame.Gstart.getValue());
+            putHashValue(digest, buffer, frame.Gend.getValue());
+            putHashMatrix(digest, buffer, frame.migration, canonicalizer);
+            int[] order = canonicalizer.getOrder(frame.migration.populationsFrom);
+            for (int i : order) {
+                Edge e = frame.migration.populationsFrom[i];
+                // all that is needed by Edge.getSizeAt and the size of the last population
+                putHashValue(digest, buffer, e.getN1().getGen().getValue());
+                putHashValue(digest, buffer, e.getN2().getGen().getValue());
+                putHashValue(digest, buffer, e.getS1().getValue());
+                putHashValue(digest, buffer, (e.getS1() == e.getS2()) ? Double.NaN : e.getS2().getValue());
+                putHashValue(digest, buffer, e.getN1().getSumOfOutGoing());
+            }
+            int numTransitions = (frame.transitions == null) ? 0 : frame.transitions.size();
+            putHashValue(digest, buffer, numTransitions);
+            // populations after the transitions are those of the next frame
+            for (int t = 0; t < numTransitions; t++) {
+                putHashMatrix(digest, buffer, frame.transitions.get(t), canonicalizer);
+            }
+        }
+        buffer.flip();
+        digest.update(buffer);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    // adds the entries of a matrix and its dimensions to a hash, with rows and columns in canonical order
+    private static void putHashMatrix(MessageDigest digest, ByteBuffer buffer, MigrationMatrix m, ModelCanonicalizer canonicalizer) {
+        putHashValue(digest, buffer, m.numPopIn);
+        putHashValue(digest, buffer, m.numPopOut);
+        Double[][] mat = m.getMigMatrix().getMat();
+        int[] rows = canonicalizer.getOrder(m.populationsFrom);
+        int[] columns = canonicalizer.getOrder(m.populationsTo);
+        for (int i : rows) {
+            for (int j : columns) {
+                putHashValue(digest, buffer, mat[i][j]);
+            }
+        }
+    }
+
+    /**
+     * Writes the model in the model language, with variables named and declared in an order that only
+     * depends on the topology of the model and on parameter values (see ModelCanonicalizer). Models that
+     * only differ in names of variables, in the order of commands, or in which parameters are named, have
+     * the same canonical form, which can be used to find duplicate models. Named populations at generation
+     * 0 keep their name. Parsing the canonical form gives an equivalent model.
+     * @return the canonical form
+     */
+    public String getCanonicalForm() {
+        return new ModelCanonicalizer(this, false).getCanonicalForm();
+    }
+
+    // adds a value to a hash, through a buffer
+    private static void putHashValue(MessageDigest digest, ByteBuffer buffer, double value) {
+        if (!buffer.hasRemaining()) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        // all NaNs are hashed the same way, and 0 is not distinguished from -0
+        buffer.putLong(Double.doubleToLongBits(value + 0.0));
+    }
+
     /**
      * Compute coalescent probability, or expected fraction of genome shared, or expected number of segments in range
      * @return matrix with quantity for each population pair
      */
     public Matrix computeModelQuantity(QuantityType type, double[] args) throws Exception {
-        if (type == QuantityType.expectedFraction && args.length != 2) {
-            throw new Exception(type + " requires 2 arguments for the computation: from length, to length.");
-        } else if (type == QuantityType.expectedNumberOfSegments && args.length != 3) {
-            throw new Exception(type + " requires 3 arguments for the computation: from length, to length, genome size.");
-        } else if (type == QuantityType.coalescent && args.length != 2) {
-            throw new Exception(type + " requires 2 arguments for the computation: from generation, to generation.");
-        } else if (type == QuantityType.coalescent && (args[0] < 0 || args[1] > TimeFrame.MAX_TIME)) {
-            throw new Exception(type + " coalescent generation must be between 0 and " + TimeFrame.MAX_TIME);
-        }
+        return computeModelQuantities(new QuantityRequest[]{new QuantityRequest(type, args)})[0];
+    }
 
-        Matrix state = new Matrix(getNumStartPops());
-        double[][] probCoal = new double[getNumStartPops()][getNumStartPops()];
-        double[][] probNotCoal = new double[getNumStartPops()][getNumStartPops()];
-        double[][] res = new double[getNumStartPops()][getNumStartPops()];
-        for (int i = 0; i < getNumStartPops(); i++) {
-            for (int j = 0; j < getNumStartPops(); j++) {
-                probNotCoal[i][j] = 1.0;
+    /**
+     * Compute several quantities in a single pass over the time frames. All quantities share the
+     * same coalescence recurrence and only differ in the per-generation factor.
+     * @param requests array of quantity requests (type and arguments)
+     * @return array with one symmetric matrix per request, in the same order
+     */
+    public Matrix[] computeModelQuantities(QuantityRequest[] requests) throws Exception {
+        long startNanos = System.nanoTime();
+        if (adaptiveTolerance > 0.0) {
+            Matrix[] results = new AdaptivePropagator(this, adaptiveTolerance).computeModelQuantities(requests);
+            if (metrics != null) {
+                metrics.getTimer(metricsPrefix + "query.adaptive").recordSince(startNanos);
             }
+            return results;
+        }
+        for (QuantityRequest request : requests) {
+            checkQuantityArguments(request.getType(), request.getArgs());
         }
-        int g = 0;
-        for (int i = 0; i < getFrames().size(); i++) {
+        QuantityAccumulator acc = new QuantityAccumulator(requests, getNumStartPops(), accumulationMode, truncationTolerance);
+        accumulateFrames(0, acc, null);
+        lastTruncationErrors = acc.getTruncationErrors();
+        if (metrics != null) {
+            metrics.getTimer(metricsPrefix + "query").recordSince(startNanos);
+            metrics.getCounter(metricsPrefix + "query.requests").add(requests.length);
+            metrics.getCounter(metricsPrefix + "query.generations").add(acc.getGeneration());
+        }
+        return acc.getResults();
+    }
+
+    /**
+     * Accumulates quantities over the time frames, from a given frame to the last one or until the computation
+     * is finished. Frames are computed in chunks when the computation can be truncated.
+     * @param firstFrame index of the first frame computed
+     * @param acc state at the start of firstFrame, updated
+     * @param checkpoints if not null, a copy of the state at the start of each frame computed is added
+     */
+    void accumulateFrames(int firstFrame, QuantityAccumulator acc, ArrayList<QuantityAccumulator> checkpoints) throws Exception {
+        TraceListener trace = getActiveTraceListener();
+        for (int i = firstFrame; i < getFrames().size() && !acc.isFinished(); i++) {
             TimeFrame frame = getFrames().get(i);
+            if (checkpoints != null) {
+                checkpoints.add(acc.copy());
+            }
+            if (trace != null) {
+                trace.frameStart(i, frame);
+            }
             // TODO: implement efficient approach for coalescent query
             if (frame.migration.populationsTo.length == 1 && frame.intEnd == TimeFrame.MAX_TIME) {
-                if (type == QuantityType.coalescent) {
-                    System.err.println("Warning: efficient method not implemented. Using iterative method.");
-                } else if (type == QuantityType.expectedFraction) {
+                if (acc.addSegmentsTail(frame.migration.populationsTo[0].getN1().getSumOfOutGoing(), frame.intStart)) {
                     System.err.println("Warning: efficient method not implemented. Using iterative method.");
-                } else {
-                    double A = frame.migration.populationsTo[0].getN1().getSumOfOutGoing();
-                    double maxGenD = (double) frame.intStart + 0.5; // integral starts from maxGen+1/2
-                    double u = args[0];
-                    double v = args[1];
-                    double G = args[2];
-                    double val = (2 * G * (A + maxGenD + 2 * A * maxGenD * u)) / (Math.exp(maxGenD
-                            * (1 / A + 2 * u)) * Math.pow((1 + 2 * A * u), 2)) - (2 * G * (A + maxGenD + 2 * A * maxGenD * v))
-                            / (Math.exp(maxGenD * (1 / A + 2 * v)) * Math.pow((1 + 2 * A * v), 2));
-                    for (int k = 0; k < getNumStartPops(); k++) {
-                        for (int t = 0; t < getNumStartPops(); t++) {
-                            res[k][t] += val;
-                        }
-                    }
-                    return new Matrix(res);
-                }
-            }
-            Matrix[] coal = frame.computeCoalescenceVector(state);
-            for (int j = 0; j < coal.length; j++) {
-                g++;
-                double factor;
-                if (debugIsOn()) {
-                    System.out.println("gen: " + g);
-                    coal[j].printMat();
                 }
-                if (type == QuantityType.coalescent) {
-                    factor = (g >= args[0] && g <= args[1]) ? 1.0 : 0.0;
-                } else if (type == QuantityType.expectedFraction) {
-                    factor = 1. / 50. * (Math.exp(-g * args[0] / 50.) * (50. + g * args[0])
-                            - Math.exp(-g * args[1] / 50.) * (50. + g * args[1]));
-                } else {
-                    factor = 2 * (Math.exp(-2 * g * args[0]) - Math.exp(-2 * g * args[1])) * args[2] * g;
+                if (acc.isFinished()) {
+                    break;
                 }
-                for (int k = 0; k < getNumStartPops(); k++) {
-                    for (int t = 0; t < getNumStartPops(); t++) {
-                        probCoal[k][t] += coal[j].getMat()[k][t] * probNotCoal[k][t];
-                        res[k][t] += coal[j].getMat()[k][t] * probNotCoal[k][t] * factor;
-                        probNotCoal[k][t] = 1.0 - probCoal[k][t];
-                    }
+            }
+            int length = frame.intEnd - frame.intStart;
+            int chunk = acc.getChunk(length);
+            for (int first = 0; first < length && !acc.isFinished(); first += chunk) {
+                long frameNanos = System.nanoTime();
+                double[][] coal = frame.computePackedCoalescenceVector(acc.getState(), getPool(), first, chunk, trace);
+                if (metrics != null) {
+                    recordFrameMetrics(i, frame, first, coal.length, frameNanos);
                 }
+                acc.add(coal, trace);
+                acc.checkTruncation(i < getFrames().size() - 1 || first + chunk < length);
             }
-            if (debugIsOn()) {
-                state.printMat();
-                System.out.println("gen: " + g);
-                Matrix.printMat(probCoal);
+            if (trace != null) {
+                trace.frameEnd(i, acc.getGeneration(), acc.getState(), acc.getProbCoal());
+            }
+        }
+    }
+
+    /**
+     * Expected number of segments shared because of coalescence in the last frame, when it has a single
+     * population of constant size, computed in closed form
+     * @param A size of the population
+     * @param start first generation of the frame
+     * @param args arguments of expectedNumberOfSegments (from length, to length, genome size)
+     * @return expected number of segments
+     */
+    static double getSegmentsTail(double A, int start, double[] args) {
+        double maxGenD = (double) start + 0.5; // integral starts from maxGen+1/2
+        double u = args[0];
+        double v = args[1];
+        double G = args[2];
+        return (2 * G * (A + maxGenD + 2 * A * maxGenD * u)) / (Math.exp(maxGenD
+                * (1 / A + 2 * u)) * Math.pow((1 + 2 * A * u), 2)) - (2 * G * (A + maxGenD + 2 * A * maxGenD * v))
+                / (Math.exp(maxGenD * (1 / A + 2 * v)) * Math.pow((1 + 2 * A * v), 2));
+    }
+
+    /**
+     * Adds a term to a sum with Neumaier's compensated summation
+     * @param sum the current sum
+     * @param term the term to be added
+     * @param comp running compensations, updated
+     * @param index index of the compensation of this sum
+     * @return the new sum, to be corrected by adding comp[index]
+     */
+    static double addCompensated(double sum, double term, double[] comp, int index) {
+        double t = sum + term;
+        if (Math.abs(sum) >= Math.abs(term)) {
+            comp[index] += (sum - t) + term;
+        } else {
+            comp[index] += (term - t) + sum;
+        }
+        return t;
+    }
+
+    /**
+     * Records time and matrix operations of a chunk of a frame. Operations are counted from the sizes of
+     * the matrices used by TimeFrame.computePackedCoalescenceVector: each generation multiplies the state by
+     * the migration matrix and allocates the new state, the scaled state and the packed coalescence matrix.
+     * @param index index of the frame
+     * @param frame the frame
+     * @param first number of generations of the frame computed before the chunk
+     * @param count number of generations in the chunk
+     * @param startNanos start of the computation of the chunk
+     */
+    private void recordFrameMetrics(int index, TimeFrame frame, int first, int count, long startNanos) {
+        String name = metricsPrefix + "frame." + index + "[" + frame.intStart + "-" + frame.intEnd + "]";
+        metrics.getTimer(name).recordSince(startNanos);
+        metrics.getCounter(name + ".generations").add(count);
+        long n = getNumStartPops();
+        long m = frame.migration.getNumPopIn();
+        long multiplies = count;
+        long flops = count * n * m * m;
+        long allocated = count * (2 * n * m + Matrix.getPackedSize((int) n));
+        if (first + count == frame.intEnd - frame.intStart && frame.transitions != null) {
+            for (MigrationMatrix t : frame.transitions) {
+                multiplies++;
+                flops += n * t.getNumPopIn() * t.getNumPopOut();
+                allocated += n * t.getNumPopOut();
+            }
+        }
+        metrics.getCounter(metricsPrefix + "matrix.multiply").add(multiplies);
+        metrics.getCounter(metricsPrefix + "matrix.multiplyAdds").add(flops);
+        metrics.getCounter(metricsPrefix + "matrix.allocatedDoubles").add(allocated);
+    }
+
+    /**
+     * Upper bound for the weight of coalescence at any generation for a quantity type (see fillQuantityFactors)
+     * @param type the quantity type
+     * @param args the arguments of the computation
+     * @return the bound
+     */
+    static double getMaxQuantityFactor(QuantityType type, double[] args) {
+        if (type == QuantityType.coalescent || type == QuantityType.expectedFraction) {
+            // an indicator, and a fraction of the genome
+            return 1.0;
+        }
+        // 2 G g exp(-2 g u) is largest at g = 1 / 2u
+        double u = args[0];
+        return (u > 0.0) ? args[2] / (u * Math.E) : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Check that the number and range of arguments are valid for a quantity type
+     * @param type the quantity type
+     * @param args the arguments of the computation
+     */
+    static void checkQuantityArguments(QuantityType type, double[] args) throws Exception {
+        checkQuantityArguments(type, args, TimeFrame.MAX_TIME);
+    }
+
+    /**
+     * Check that the number and range of arguments are valid for a quantity type
+     * @param type the quantity type
+     * @param args the arguments of the computation
+     * @param maxTime the largest generation that can be computed
+     */
+    static void checkQuantityArguments(QuantityType type, double[] args, double maxTime) throws Exception {
+        if (type == QuantityType.expectedFraction && args.length != 2) {
+            throw new Exception(type + " requires 2 arguments for the computation: from length, to length.");
+        } else if (type == QuantityType.expectedNumberOfSegments && args.length != 3) {
+            throw new Exception(type + " requires 3 arguments for the computation: from length, to length, genome size.");
+        } else if (type == QuantityType.coalescent && args.length != 2) {
+            throw new Exception(type + " requires 2 arguments for the computation: from generation, to generation.");
+        } else if (type == QuantityType.coalescent && (args[0] < 0 || args[1] > maxTime)) {
+            throw new Exception(type + " coalescent generation must be between 0 and " + maxTime);
+        }
+    }
+
+    /**
+     * Fills a table with the weight of coalescence at consecutive generations for a quantity type.
+     * Each type has its own loop, so that the table is computed without branching per generation,
+     * with vector instructions if available (see ArrayKernels).
+     * @param type the quantity type
+     * @param args the arguments of the computation
+     * @param firstGen the generation of the first entry of the table
+     * @param factors the table to be filled, one entry per generation
+     */
+    static void fillQuantityFactors(QuantityType type, double[] args, int firstGen, double[] factors) {
+        if (type == QuantityType.coalescent) {
+            for (int j = 0; j < factors.length; j++) {
+                int g = firstGen + j;
+                factors[j] = (g >= args[0] && g <= args[1]) ? 1.0 : 0.0;
             }
+        } else if (type == QuantityType.expectedFraction) {
+            ArrayKernels.get().fillFractionFactors(args[0], args[1], firstGen, factors);
+        } else {
+            ArrayKernels.get().fillSegmentFactors(args[0], args[1], args[2], firstGen, factors);
+        }
+    }
+
+    /**
+     * Sets the number of threads used within a single query. Rows of large matrices
+     * (at least Matrix.PARALLEL_THRESHOLD populations) are then computed in parallel.
+     * The threads are stopped by close, or when the parallelism is changed.
+     * @param numThreads number of threads, 1 or less for sequential queries
+     */
+    public void setParallelism(int numThreads) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+    }
+
+    /**
+     * Stops the threads used within queries, if any (see setParallelism). Queries are sequential afterwards.
+     */
+    public void close() {
+        setParallelism(1);
+    }
+
+    /**
+     * Sets the error tolerance of each step of the adaptive step size engine (see AdaptivePropagator),
+     * which is not limited to TimeFrame.MAX_TIME generations.
+     * @param tolerance the tolerance, 0 to compute one generation at a time
+     */
+    public void setAdaptiveTolerance(double tolerance) {
+        this.adaptiveTolerance = tolerance;
+    }
+
+    /**
+     * @return the adaptiveTolerance
+     */
+    public double getAdaptiveTolerance() {
+        return adaptiveTolerance;
+    }
+
+    /**
+     * Sets a tolerance for early termination: quantities are no longer accumulated once every pair
+     * has not coalesced with probability at most the tolerance. The error of each quantity is then at most
+     * the tolerance times the largest weight of a generation (see getLastTruncationErrors).
+     * @param tolerance the tolerance, 0 to compute all frames
+     */
+    public void setTruncationTolerance(double tolerance) {
+        this.truncationTolerance = tolerance;
+    }
+
+    /**
+     * @return the truncationTolerance
+     */
+    public double getTruncationTolerance() {
+        return truncationTolerance;
+    }
+
+    /**
+     * Sets the registry where this model records timers of parsing, building, queries and each frame, and
+     * counters of matrix operations
+     * @param metrics the registry, null to stop recording
+     * @param prefix prepended to the names of metrics, to distinguish models sharing a registry
+     */
+    public void setMetrics(MetricsRegistry metrics, String prefix) {
+        this.metrics = metrics;
+        this.metricsPrefix = prefix;
+    }
+
+    /**
+     * @return the metrics registry, null if metrics are not recorded
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the listener receiving events when matrices are built and quantities are computed
+     * @param traceListener the listener, null to stop tracing
+     */
+    public void setTraceListener(TraceListener traceListener) {
+        this.traceListener = traceListener;
+    }
+
+    /**
+     * @return the trace listener, null if events are not traced
+     */
+    public TraceListener getTraceListener() {
+        return traceListener;
+    }
+
+    // the listener of this model, or one printing events if debug is on
+    private TraceListener getActiveTraceListener() {
+        if (traceListener == null && debug) {
+            return debugTraceListener;
         }
-        return new Matrix(res);
+        return traceListener;
+    }
+
+    /**
+     * Sets how probabilities of coalescence are accumulated over generations (see AccumulationMode)
+     * @param accumulationMode the mode
+     */
+    public void setAccumulationMode(AccumulationMode accumulationMode) {
+        this.accumulationMode = accumulationMode;
+    }
+
+    /**
+     * @return the accumulationMode
+     */
+    public AccumulationMode getAccumulationMode() {
+        return accumulationMode;
+    }
+
+    /**
+     * returns bounds on the error caused by early termination in the last call to computeModelQuantities,
+     * one per request (0 if the computation was not truncated)
+     * @return the bounds
+     */
+    public double[] getLastTruncationErrors() {
+        return lastTruncationErrors;
+    }
+
+    /**
+     * @return the pool
+     */
+    public ForkJoinPool getPool() {
+        return pool;
     }
 
     /**
@@ -1401,4 +1948,62 @@ public class DemographicLanguageParser {
 
         coalescent, expectedFraction, expectedNumberOfSegments;
     };
+
+    /**
+     * Formats of the description written by narrate
+     */
+    public enum NarrateFormat {
+
+        // a readable story
+        text,
+        // an object with a list of frames, each with populations, migrations and transitions
+        json,
+        // a Graphviz graph of populations, with migrations as dashed arcs and transitions as solid arcs
+        dot
+    };
+
+    /**
+     * How probabilities of coalescence are accumulated over generations. plain: sums, with probNotCoal = 1 - probCoal.
+     * compensated: Neumaier summation of probCoal and quantities. logSurvival: probNotCoal is tracked as a sum of
+     * log(1 - c), so that it stays accurate when close to 0, and quantities use Neumaier summation.
+     */
+    public enum AccumulationMode {
+
+        plain, compensated, logSurvival;
+    };
+
+    /**
+     * A quantity to be computed, with its arguments. Used to compute several quantities in one pass.
+     */
+    public static class QuantityRequest {
+
+        // type of quantity
+        private final QuantityType type;
+        // arguments of the computation
+        private final double[] args;
+
+        /**
+         * Constructor
+         * @param type the quantity type
+         * @param args the arguments of the computation
+         */
+        public QuantityRequest(QuantityType type, double[] args) {
+            this.type = type;
+            this.args = args;
+        }
+
+        /**
+         * @return the type
+         */
+        public QuantityType getType() {
+            return type;
+        }
+
+        /**
+         * @return the args
+         */
+        public double[] getArgs() {
+            return args;
+        }
+    }
 }
@@ -138,12 +138,12 @@ public class Edge implements Comparable<Edge> {
         }
         Iterator edgeIt = edgeSet.iterator();
         Edge e = (Edge) edgeIt.next();
-        String s = e.getId();
+        StringBuilder s = new StringBuilder(e.getId());
         while (edgeIt.hasNext()) {
             e = (Edge) edgeIt.next();
-            s += "-" + e.getId();
+            s.append('-').append(e.getId());
         }
-        return s;
+        return s.toString();
     }
 
     /**
@@ -1,5 +1,6 @@
 package demographicLanguageParser;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -69,6 +70,8 @@ public class Generation extends Parameter {
     private HashSet<Generation> moreThan = new HashSet<Generation>();
     private HashMap<Generation, Integer> lessThanOffsetNodes = new HashMap<Generation, Integer>();
     private HashMap<Generation, Integer> moreThanOffsetNodes = new HashMap<Generation, Integer>();
+    // generations at an offset from this one, which move when this generation is updated
+    private ArrayList<Generation> dependentGenerations = new ArrayList<Generation>();
 
     /**
      * Generation constructor
@@ -107,6 +110,7 @@ public class Generation extends Parameter {
         this.offset = offset;
         this.isOffset = true;
         this.isConstant = offsetGeneration.isConstant;
+        offsetGeneration.getDependentGenerations().add(this);
         created++;
     }
 
@@ -161,13 +165,86 @@ public class Generation extends Parameter {
     }
 
     /**
-     * Try to update a parameter
+     * Returns the values this generation can be updated to: integers strictly between the generations it is
+     * connected to, such that generations at an offset from it also are. Bounds set by generations at an
+     * offset from this one move with it, and are ignored.
+     * @return the lowest and the highest value
+     */
+    public double[] getUpdateRange() {
+        double[] range = new double[]{Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        narrowUpdateRange(this, 0, range);
+        return range;
+    }
+
+    // narrows the range of a generation, this one being at an offset from it
+    private void narrowUpdateRange(Generation updated, int offsetFromUpdated, double[] range) {
+        for (Generation g : getMoreThan()) {
+            if (!g.isAtOffsetFrom(updated)) {
+                range[0] = Math.max(range[0], g.getValue() + 1 - offsetFromUpdated);
+            }
+        }
+        for (Generation g : getLessThan()) {
+            if (!g.isAtOffsetFrom(updated)) {
+                range[1] = Math.min(range[1], g.getValue() - 1 - offsetFromUpdated);
+            }
+        }
+        for (Generation g : getDependentGenerations()) {
+            g.narrowUpdateRange(updated, offsetFromUpdated + g.getOffset(), range);
+        }
+    }
+
+    // true if this generation is g, or at an offset from it
+    private boolean isAtOffsetFrom(Generation g) {
+        for (Generation c = this; c != null; c = c.isIsOffset() ? c.getOffsetGeneration() : null) {
+            if (c == g) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Try to update a parameter. Generations must stay integer and between the generations they are
+     * connected to, as well as all generations at an offset from this one. Offset generations cannot be
+     * updated directly. The value is unchanged if a constraint is violated.
      * @return 0 if parameter updated, 1 if range violated, 2 if conservation violated, 3 if migration violated
      */
-    public int tryUpdate(double increment) {
+    public int tryUpdate(double increment, HashMap<Parameter, Double> changed) {
+        if (isConstant || isIsOffset()) {
+            return 1;
+        }
+        double oldValue = getValue();
+        double newValue = oldValue + increment;
+        if (Math.abs(newValue - Math.round(newValue)) > getEpsilon()) {
+            return 1;
+        }
+        setValue((double) Math.round(newValue));
+        if (!isInRange()) {
+            setValue(oldValue);
+            return 1;
+        }
+        if (!changed.containsKey(this)) {
+            changed.put(this, oldValue);
+        }
         return 0;
     }
 
+    /**
+     * checks that this generation and those at an offset from it are within their bounds
+     * @return true if all are within bounds
+     */
+    private boolean isInRange() {
+        if (getValue() <= getAtLeast() || getValue() >= getAtMost()) {
+            return false;
+        }
+        for (Generation g : getDependentGenerations()) {
+            if (!g.isInRange()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * @return the isOffset
      */
@@ -279,4 +356,18 @@ public class Generation extends Parameter {
     public void setMoreThanOffsetNodes(HashMap<Generation, Integer> moreThanOffsetNodes) {
         this.moreThanOffsetNodes = moreThanOffsetNodes;
     }
+
+    /**
+     * @return the dependentGenerations
+     */
+    public ArrayList<Generation> getDependentGenerations() {
+        return dependentGenerations;
+    }
+
+    /**
+     * @param dependentGenerations the dependentGenerations to set
+     */
+    public void setDependentGenerations(ArrayList<Generation> dependentGenerations) {
+        this.dependentGenerations = dependentGenerations;
+    }
 }
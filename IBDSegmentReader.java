@@ -0,0 +1,389 @@
+package demographicLanguageParser;
+
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads files of IBD segments shared by pairs of samples (e.g. GERMLINE or hap-IBD output) and builds
+ * histograms of segment lengths for each pair of populations at generation 0. Files are memory mapped
+ * and parsed in parallel chunks, each thread accumulating its own histograms. Each line of a segment file
+ * contains whitespace separated fields, of which only the two sample names and the length (or start and
+ * end) in cM are used. Lines starting with "#" are ignored. Samples are mapped to populations with a
+ * SampleIndex, directly from the bytes of the file.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class IBDSegmentReader {
+
+    // size of the part of the file parsed by each task
+    static final int CHUNK_SIZE = 1 << 25;
+    // lines longer than this are not allowed
+    static final int MAX_LINE_LENGTH = 1 << 16;
+    // columns of the two sample names
+    private int sample1Column, sample2Column;
+    // column of the start of the segment (cM), or of its length if endColumn is -1
+    private int startColumn;
+    // column of the end of the segment (cM), -1 if the length is given
+    private int endColumn;
+
+    /**
+     * Constructor
+     * @param sample1Column column of the first sample name (from 0)
+     * @param sample2Column column of the second sample name
+     * @param startColumn column of the start of segments (cM), or of their length if endColumn is -1
+     * @param endColumn column of the end of segments (cM), or -1
+     */
+    public IBDSegmentReader(int sample1Column, int sample2Column, int startColumn, int endColumn) {
+        this.sample1Column = sample1Column;
+        this.sample2Column = sample2Column;
+        this.startColumn = startColumn;
+        this.endColumn = endColumn;
+    }
+
+    /**
+     * reader of hap-IBD files (sample1 hap1 sample2 hap2 chr start end cM)
+     * @return the reader
+     */
+    public static IBDSegmentReader hapIBD() {
+        return new IBDSegmentReader(0, 2, 7, -1);
+    }
+
+    /**
+     * reader of GERMLINE match files (fam1 id1 fam2 id2 chr start end snp1 snp2 numSnps length units ...)
+     * @return the reader
+     */
+    public static IBDSegmentReader germline() {
+        return new IBDSegmentReader(1, 3, 10, -1);
+    }
+
+    /**
+     * Reads a file of segments and builds length histograms
+     * @param filename the file
+     * @param samples population of each sample, also defines the order of populations in the results
+     * @param binEdges boundaries of length bins (cM), increasing. Segments outside are only counted in the total length
+     * @param numThreads number of threads
+     * @return the histograms
+     */
+    public SharingHistogram read(String filename, final SampleIndex samples, final double[] binEdges, int numThreads) throws Exception {
+        final int numPops = samples.getPopNames().length;
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            final FileChannel channel = file.getChannel();
+            final long size = channel.size();
+            ArrayList<Callable<SharingHistogram>> tasks = new ArrayList<Callable<SharingHistogram>>();
+            for (long start = 0; start < size; start += CHUNK_SIZE) {
+                final long chunkStart = start;
+                final long chunkEnd = Math.min(size, start + CHUNK_SIZE);
+                tasks.add(new Callable<SharingHistogram>() {
+
+                    public SharingHistogram call() throws Exception {
+                        // include the last byte of the previous chunk, to know if a line starts at chunkStart.
+                        // lines starting in the chunk may end after it
+                        long mapStart = (chunkStart == 0) ? 0 : chunkStart - 1;
+                        long mapEnd = Math.min(size, chunkEnd + MAX_LINE_LENGTH);
+                        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+                        SharingHistogram histogram = new SharingHistogram(numPops, binEdges);
+                        parseChunk(buffer, (int) (chunkEnd - mapStart), chunkStart > 0, mapEnd == size, samples, histogram);
+                        return histogram;
+                    }
+                });
+            }
+            List<Future<SharingHistogram>> results = executor.invokeAll(tasks);
+            SharingHistogram total = new SharingHistogram(numPops, binEdges);
+            for (Future<SharingHistogram> f : results) {
+                total.merge(f.get());
+            }
+            total.setPopulations(samples);
+            return total;
+        } finally {
+            executor.shutdown();
+            file.close();
+        }
+    }
+
+    /**
+     * Parses the lines that start within a chunk
+     * @param buffer the mapped chunk, possibly preceded by the last byte of the previous chunk and followed by the end of its last line
+     * @param end position of the end of the chunk in the buffer
+     * @param skipFirst true if the buffer starts with the last byte of the previous chunk
+     * @param atEndOfFile true if the buffer reaches the end of the file
+     * @param samples population of each sample
+     * @param histogram histograms to be updated
+     */
+    private void parseChunk(MappedByteBuffer buffer, int end, boolean skipFirst, boolean atEndOfFile,
+            SampleIndex samples, SharingHistogram histogram) throws Exception {
+        int limit = buffer.limit();
+        int pos = 0;
+        if (skipFirst) {
+            // the line containing the first byte belongs to the previous chunk
+            while (pos < limit && buffer.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+        int maxField = Math.max(Math.max(sample1Column, sample2Column), Math.max(startColumn, endColumn));
+        int[] fieldStart = new int[maxField + 1];
+        int[] fieldEnd = new int[maxField + 1];
+        while (pos < end) {
+            int lineEnd = pos;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !atEndOfFile) {
+                throw new Exception("Line longer than " + MAX_LINE_LENGTH + " bytes.");
+            }
+            int numFields = 0;
+            int p = pos;
+            while (p < lineEnd && numFields <= maxField) {
+                while (p < lineEnd && isSpace(buffer.get(p))) {
+                    p++;
+                }
+                if (p == lineEnd) {
+                    break;
+                }
+                fieldStart[numFields] = p;
+                while (p < lineEnd && !isSpace(buffer.get(p))) {
+                    p++;
+                }
+                fieldEnd[numFields] = p;
+                numFields++;
+            }
+            if (numFields > 0 && buffer.get(fieldStart[0]) != '#') {
+                if (numFields <= maxField) {
+                    throw new Exception("Segment line has " + numFields + " fields, expecting at least " + (maxField + 1) + ".");
+                }
+                int sample1 = samples.getSampleId(buffer, fieldStart[sample1Column], fieldEnd[sample1Column]);
+                int sample2 = samples.getSampleId(buffer, fieldStart[sample2Column], fieldEnd[sample2Column]);
+                double length = parseDouble(buffer, fieldStart[startColumn], fieldEnd[startColumn]);
+                if (endColumn >= 0) {
+                    length = parseDouble(buffer, fieldStart[endColumn], fieldEnd[endColumn]) - length;
+                }
+                if (sample1 == -1 || sample2 == -1) {
+                    histogram.numSkipped++;
+                } else {
+                    histogram.add(samples.getPairIndex(sample1, sample2), length);
+                }
+            }
+            pos = lineEnd + 1;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static String getString(MappedByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buffer.get(i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Parses a decimal number without creating a string, falling back to Double.parseDouble for exponents
+     * @param buffer the buffer
+     * @param from first byte of the number
+     * @param to end of the number (excluded)
+     * @return the number
+     */
+    static double parseDouble(MappedByteBuffer buffer, int from, int to) {
+        boolean negative = false;
+        int i = from;
+        if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int decimals = -1;
+        int digits = 0;
+        for (; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                } else if (decimals < 0) {
+                    // digits beyond precision, before the point
+                    return Double.parseDouble(getString(buffer, from, to));
+                }
+            } else if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else {
+                return Double.parseDouble(getString(buffer, from, to));
+            }
+        }
+        double value = (decimals > 0) ? mantissa / Math.pow(10, decimals) : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Histograms of IBD segment lengths for each pair of populations at generation 0
+     */
+    public static class SharingHistogram {
+
+        // number of populations
+        private final int numPops;
+        // boundaries of length bins (cM)
+        private final double[] binEdges;
+        // number of segments in each bin, for each packed pair of populations
+        private final long[][] counts;
+        // total length of segments (cM), for each packed pair of populations
+        private final double[] totalLength;
+        // number of segments, including those outside the bins
+        private long numSegments = 0;
+        // number of segments of samples without a population
+        long numSkipped = 0;
+        // populations at generation 0
+        private String[] popNames;
+        // number of samples in each population
+        private long[] numSamples;
+
+        SharingHistogram(int numPops, double[] binEdges) {
+            this.numPops = numPops;
+            this.binEdges = binEdges;
+            this.counts = new long[binEdges.length - 1][Matrix.getPackedSize(numPops)];
+            this.totalLength = new double[Matrix.getPackedSize(numPops)];
+        }
+
+        // adds a segment shared by samples of a pair of populations (packed index)
+        void add(int pair, double length) {
+            numSegments++;
+            totalLength[pair] += length;
+            if (length < binEdges[0] || length >= binEdges[binEdges.length - 1]) {
+                return;
+            }
+            // binary search of the bin
+            int lo = 0, hi = binEdges.length - 1;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (length < binEdges[mid]) {
+                    hi = mid;
+                } else {
+                    lo = mid;
+                }
+            }
+            counts[lo][pair]++;
+        }
+
+        // adds histograms of another part of the file
+        void merge(SharingHistogram other) {
+            for (int b = 0; b < counts.length; b++) {
+                for (int p = 0; p < totalLength.length; p++) {
+                    counts[b][p] += other.counts[b][p];
+                }
+            }
+            for (int p = 0; p < totalLength.length; p++) {
+                totalLength[p] += other.totalLength[p];
+            }
+            numSegments += other.numSegments;
+            numSkipped += other.numSkipped;
+        }
+
+        // records population names and number of samples in each population
+        void setPopulations(SampleIndex samples) {
+            popNames = samples.getPopNames();
+            numSamples = samples.getPopSizes();
+        }
+
+        /**
+         * number of segments in a length bin
+         * @param bin index of the bin
+         * @return symmetric matrix of counts, in the order of getPopsAt0()
+         */
+        public Matrix getCounts(int bin) {
+            double[] packed = new double[totalLength.length];
+            for (int p = 0; p < packed.length; p++) {
+                packed[p] = counts[bin][p];
+            }
+            return Matrix.fromPacked(packed, numPops);
+        }
+
+        /**
+         * @return symmetric matrix of total length of shared segments (cM), in the order of getPopsAt0()
+         */
+        public Matrix getTotalLength() {
+            return Matrix.fromPacked(totalLength.clone(), numPops);
+        }
+
+        /**
+         * number of pairs of haplotypes from distinct samples, assuming diploid samples
+         * @return symmetric matrix, in the order of getPopsAt0()
+         */
+        public Matrix getNumHaplotypePairs() {
+            double[] packed = new double[totalLength.length];
+            for (int i = 0; i < numPops; i++) {
+                for (int j = i; j < numPops; j++) {
+                    double n = (i == j) ? numSamples[i] * (numSamples[i] - 1) / 2.0 : (double) numSamples[i] * numSamples[j];
+                    packed[Matrix.packedIndex(i, j, numPops)] = 4.0 * n;
+                }
+            }
+            return Matrix.fromPacked(packed, numPops);
+        }
+
+        /**
+         * Writes the histograms in the format read by ObservedSharing (lengths converted to Morgans)
+         * @param filename the output file
+         */
+        public void write(String filename) throws Exception {
+            PrintWriter out = new PrintWriter(new FileWriter(filename));
+            try {
+                Matrix pairs = getNumHaplotypePairs();
+                for (int i = 0; i < numPops; i++) {
+                    for (int j = i; j < numPops; j++) {
+                        if (pairs.get(i, j) == 0.0) {
+                            continue;
+                        }
+                        for (int b = 0; b < counts.length; b++) {
+                            out.println(popNames[i] + " " + popNames[j] + " " + pairs.get(i, j) + " " + binEdges[b] / 100.
+                                    + " " + binEdges[b + 1] / 100. + " " + counts[b][Matrix.packedIndex(i, j, numPops)]);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /**
+         * @return the number of segments, including those outside the bins
+         */
+        public long getNumSegments() {
+            return numSegments;
+        }
+
+        /**
+         * @return the number of segments of samples without a population
+         */
+        public long getNumSkipped() {
+            return numSkipped;
+        }
+
+        /**
+         * @return the number of length bins
+         */
+        public int getNumBins() {
+            return counts.length;
+        }
+
+        /**
+         * @return the popNames
+         */
+        public String[] getPopNames() {
+            return popNames;
+        }
+    }
+}
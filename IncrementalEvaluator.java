@@ -0,0 +1,87 @@
+package demographicLanguageParser;
+
+import java.util.ArrayList;
+
+/**
+ * Computes quantities for a base model and for candidate models derived from it, reusing the state of
+ * the base model up to the first frame where a candidate differs (see ModelDiff). The state at the
+ * start of each frame of the base model is kept, so each candidate only computes its own frames.
+ * Quantities are accumulated as in DemographicLanguageParser.computeModelQuantities, with the accumulation
+ * mode and truncation tolerance of the base model. Adaptive steps do not compute the state at the start
+ * of frames and are not supported.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class IncrementalEvaluator {
+
+    // the base model
+    private final DemographicLanguageParser base;
+    // requests computed for all models
+    private final DemographicLanguageParser.QuantityRequest[] requests;
+    // state of the base model at the start of each frame
+    private final ArrayList<QuantityAccumulator> checkpoints = new ArrayList<QuantityAccumulator>();
+    // results of the base model
+    private final Matrix[] baseResults;
+    // number of frames reused by the last evaluation
+    private int lastReusedFrames = 0;
+
+    /**
+     * Computes quantities for the base model and keeps its state at the start of each frame
+     * @param base the base model, with its current matrices. Must not be changed while the evaluator is used
+     * @param requests array of quantity requests (type and arguments)
+     */
+    public IncrementalEvaluator(DemographicLanguageParser base, DemographicLanguageParser.QuantityRequest[] requests) throws Exception {
+        if (base.getAdaptiveTolerance() > 0.0) {
+            throw new Exception("Incremental evaluation does not support adaptive steps (adaptive tolerance "
+                    + base.getAdaptiveTolerance() + ").");
+        }
+        for (DemographicLanguageParser.QuantityRequest request : requests) {
+            DemographicLanguageParser.checkQuantityArguments(request.getType(), request.getArgs());
+        }
+        this.base = base;
+        this.requests = requests;
+        QuantityAccumulator acc = new QuantityAccumulator(requests, base.getNumStartPops(), base.getAccumulationMode(),
+                base.getTruncationTolerance());
+        base.accumulateFrames(0, acc, checkpoints);
+        this.baseResults = acc.getResults();
+    }
+
+    /**
+     * @return the results of the base model, one matrix per request
+     */
+    public Matrix[] getBaseResults() {
+        return baseResults;
+    }
+
+    /**
+     * Computes quantities for a candidate model, starting from the first frame where it differs from the base
+     * model. The candidate must use the same accumulation settings as the base model.
+     * @param candidate the candidate, with its current matrices
+     * @return one matrix per request
+     */
+    public Matrix[] evaluate(DemographicLanguageParser candidate) throws Exception {
+        if (candidate.getAdaptiveTolerance() > 0.0 || candidate.getAccumulationMode() != base.getAccumulationMode()
+                || candidate.getTruncationTolerance() != base.getTruncationTolerance()) {
+            throw new Exception("Candidate model must use the accumulation mode and tolerances of the base model.");
+        }
+        int first = ModelDiff.getFirstDifferingFrame(base, candidate);
+        if (first == base.getFrames().size() && first == candidate.getFrames().size()) {
+            lastReusedFrames = first;
+            return baseResults;
+        }
+        // a frame can be resumed only if the base model computed it
+        first = Math.min(first, checkpoints.size() - 1);
+        lastReusedFrames = first;
+        QuantityAccumulator acc = (first == 0)
+                ? new QuantityAccumulator(requests, candidate.getNumStartPops(), candidate.getAccumulationMode(), candidate.getTruncationTolerance())
+                : checkpoints.get(first).copy();
+        candidate.accumulateFrames(first, acc, null);
+        return acc.getResults();
+    }
+
+    /**
+     * @return the number of frames of the base model reused by the last call to evaluate
+     */
+    public int getLastReusedFrames() {
+        return lastReusedFrames;
+    }
+}
@@ -0,0 +1,296 @@
+package demographicLanguageParser;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Samples the free parameters of a demographic model from their posterior given observed IBD sharing,
+ * using parallel tempering. Each chain has its own copy of the model and runs on its own thread. Priors
+ * are uniform within the range of each parameter. Samples of the cold chain are streamed to a binary file:
+ * a header (int magic, int number of parameters, parameter names as UTF strings) followed by one record
+ * per sample (int sweep, double log-likelihood, one double per parameter).
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class MCMCSampler {
+
+    // identifies files written by the sampler
+    static final int MAGIC = 0x4D434D43;
+    // smallest values proposals are scaled to, so that parameters starting at 0 can move
+    static final double MIN_GENERATION_SCALE = 1.0;
+    static final double MIN_SIZE_SCALE = 1.0;
+    static final double MIN_RATE_SCALE = 1e-3;
+    // chains, one per temperature
+    private Chain[] chains;
+    // inverse temperatures, the first one is 1 (cold chain)
+    private double[] betas;
+    // chain currently at each temperature
+    private int[] chainAtTemperature;
+    // threads running the chains
+    private ExecutorService executor;
+    // random generator used for swaps
+    private Random random;
+    // names of the free parameters
+    private String[] parameterNames;
+    // number of accepted swaps between temperatures
+    private int acceptedSwaps = 0;
+    // number of proposed swaps between temperatures
+    private int proposedSwaps = 0;
+
+    /**
+     * Constructor. Parses one copy of the model for each chain.
+     * @param filename name of file containing demography
+     * @param observed observed IBD sharing
+     * @param genomeSize size of the genome (Morgans)
+     * @param betas inverse temperatures, the first one should be 1
+     * @param proposalScale standard deviation of proposals, relative to the initial value of each parameter
+     *        (at least MIN_GENERATION_SCALE, MIN_SIZE_SCALE or MIN_RATE_SCALE). The standard deviation does
+     *        not change during the run, so that proposals are symmetric
+     * @param seed seed of random generators
+     * @throws Exception
+     */
+    public MCMCSampler(String filename, ObservedSharing observed, double genomeSize, double[] betas,
+            double proposalScale, long seed) throws Exception {
+        this.betas = betas;
+        this.random = new Random(seed);
+        this.chains = new Chain[betas.length];
+        this.chainAtTemperature = new int[betas.length];
+        for (int c = 0; c < betas.length; c++) {
+            chains[c] = new Chain(new DemographicLanguageParser(filename), observed, genomeSize, proposalScale, seed + c + 1);
+            chainAtTemperature[c] = c;
+        }
+        parameterNames = chains[0].parameterNames;
+        executor = Executors.newFixedThreadPool(betas.length);
+    }
+
+    /**
+     * Sets the standard deviation of proposals for a parameter, in all chains
+     * @param name name of the parameter
+     * @param scale the standard deviation
+     */
+    public void setProposalScale(String name, double scale) throws Exception {
+        for (Chain chain : chains) {
+            int p = Arrays.asList(chain.parameterNames).indexOf(name);
+            if (p == -1) {
+                throw new Exception("Parameter " + name + " is not a free parameter of the model.");
+            }
+            if (!(scale > 0)) {
+                throw new Exception("Proposal scale must be positive, got " + scale);
+            }
+            chain.proposalScales[p] = scale;
+        }
+    }
+
+    /**
+     * Runs the sampler
+     * @param numSweeps number of sweeps. In each sweep all chains make some proposals, then swaps are proposed
+     * @param stepsPerSweep number of proposals made by each chain in a sweep
+     * @param thin a sample is written every thin sweeps, at least 1
+     * @param outputFile file the cold chain samples are written to
+     */
+    public void run(int numSweeps, final int stepsPerSweep, int thin, String outputFile) throws Exception {
+        if (numSweeps < 0 || stepsPerSweep < 0) {
+            throw new Exception("Number of sweeps and steps per sweep must not be negative, got " + numSweeps + " and " + stepsPerSweep + ".");
+        }
+        if (thin < 1) {
+            throw new Exception("Thinning must be at least 1, got " + thin + ".");
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(parameterNames.length);
+            for (String name : parameterNames) {
+                out.writeUTF(name);
+            }
+            for (int sweep = 0; sweep < numSweeps; sweep++) {
+                // chains are independent within a sweep
+                ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+                for (int t = 0; t < betas.length; t++) {
+                    final Chain chain = chains[chainAtTemperature[t]];
+                    final double beta = betas[t];
+                    tasks.add(new Callable<Object>() {
+
+                        public Object call() throws Exception {
+                            for (int s = 0; s < stepsPerSweep; s++) {
+                                chain.step(beta);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                List<Future<Object>> results = executor.invokeAll(tasks);
+                for (Future<Object> f : results) {
+                    // rethrows exceptions of the chains
+                    f.get();
+                }
+                // propose a swap between a random pair of adjacent temperatures
+                if (betas.length > 1) {
+                    int t = random.nextInt(betas.length - 1);
+                    Chain c1 = chains[chainAtTemperature[t]];
+                    Chain c2 = chains[chainAtTemperature[t + 1]];
+                    double logRatio = (betas[t] - betas[t + 1]) * (c2.logLikelihood - c1.logLikelihood);
+                    proposedSwaps++;
+                    if (Math.log(random.nextDouble()) < logRatio) {
+                        int tmp = chainAtTemperature[t];
+                        chainAtTemperature[t] = chainAtTemperature[t + 1];
+                        chainAtTemperature[t + 1] = tmp;
+                        acceptedSwaps++;
+                    }
+                }
+                if (sweep % thin == 0) {
+                    Chain cold = chains[chainAtTemperature[0]];
+                    out.writeInt(sweep);
+                    out.writeDouble(cold.logLikelihood);
+                    for (int p = 0; p < parameterNames.length; p++) {
+                        out.writeDouble(cold.parameters[p].getValue());
+                    }
+                }
+                if (DemographicLanguageParser.debugIsOn()) {
+                    System.out.println("sweep " + sweep + " cold log-likelihood " + chains[chainAtTemperature[0]].logLikelihood);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Stops the threads running the chains
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return the parameterNames
+     */
+    public String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @return fraction of accepted swaps between temperatures
+     */
+    public double getSwapAcceptanceRate() {
+        return (proposedSwaps == 0) ? 0.0 : (double) acceptedSwaps / proposedSwaps;
+    }
+
+    /**
+     * @return fraction of accepted proposals of each chain, in the order of temperatures
+     */
+    public double[] getAcceptanceRates() {
+        double[] rates = new double[betas.length];
+        for (int t = 0; t < betas.length; t++) {
+            Chain c = chains[chainAtTemperature[t]];
+            rates[t] = (c.proposed == 0) ? 0.0 : (double) c.accepted / c.proposed;
+        }
+        return rates;
+    }
+
+    /**
+     * A Metropolis-Hastings chain with its own copy of the model
+     */
+    private static class Chain {
+
+        // the model, used only by this chain
+        final DemographicLanguageParser model;
+        // observed data
+        final ObservedSharing observed;
+        // quantities required to compute the likelihood
+        final DemographicLanguageParser.QuantityRequest[] requests;
+        // free parameters of this copy of the model, and their names
+        final Parameter[] parameters;
+        final String[] parameterNames;
+        // standard deviation of proposals, for each parameter
+        final double[] proposalScales;
+        // random generator of this chain
+        final Random random;
+        // log-likelihood at current values
+        double logLikelihood;
+        // number of proposed and accepted moves
+        long proposed = 0, accepted = 0;
+
+        Chain(DemographicLanguageParser model, ObservedSharing observed, double genomeSize, double proposalScale, long seed) throws Exception {
+            this.model = model;
+            this.observed = observed;
+            this.requests = observed.getRequests(genomeSize);
+            this.random = new Random(seed);
+            TreeMap<String, Parameter> free = model.getFreeParameters();
+            this.parameterNames = free.keySet().toArray(new String[free.size()]);
+            this.parameters = free.values().toArray(new Parameter[free.size()]);
+            this.proposalScales = new double[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                Parameter p = parameters[i];
+                double minScale = p instanceof Generation ? MIN_GENERATION_SCALE : (p instanceof Size ? MIN_SIZE_SCALE : MIN_RATE_SCALE);
+                proposalScales[i] = proposalScale * Math.max(Math.abs(p.getValue()), minScale);
+            }
+            model.checkConstraints();
+            this.logLikelihood = computeLogLikelihood();
+            if (logLikelihood == Double.NEGATIVE_INFINITY) {
+                throw new Exception("Initial parameter values have zero likelihood.");
+            }
+        }
+
+        /**
+         * Makes one proposal on a random parameter, accepted with Metropolis-Hastings probability
+         * @param beta inverse temperature of the chain
+         */
+        void step(double beta) throws Exception {
+            if (parameters.length == 0) {
+                return;
+            }
+            int i = random.nextInt(parameters.length);
+            Parameter p = parameters[i];
+            double increment = random.nextGaussian() * proposalScales[i];
+            if (p instanceof Generation) {
+                increment = Math.round(increment);
+                if (increment == 0) {
+                    increment = random.nextBoolean() ? 1 : -1;
+                }
+            }
+            proposed++;
+            // the parameter and the pivots changed to keep nodes conserved, with their previous values
+            HashMap<Parameter, Double> changed = new HashMap<Parameter, Double>();
+            if (p.tryUpdate(increment, changed) != 0) {
+                // the proposal violates a constraint, values were not changed
+                return;
+            }
+            // tryUpdate checked the constraints involving the changed parameters. A generation also changes which
+            // populations coexist, so the rebuilt matrices are checked
+            double newLogLikelihood;
+            try {
+                model.rebuild();
+                if (p instanceof Generation) {
+                    model.checkMigrationMatrices();
+                }
+                newLogLikelihood = computeLogLikelihood();
+            } catch (Exception e) {
+                newLogLikelihood = Double.NEGATIVE_INFINITY;
+            }
+            if (Math.log(random.nextDouble()) < beta * (newLogLikelihood - logLikelihood)) {
+                logLikelihood = newLogLikelihood;
+                accepted++;
+            } else {
+                Parameter.restore(changed);
+                if (p instanceof Generation) {
+                    // matrices used by later updates of rates to check their rows must match the restored generations
+                    model.rebuild();
+                }
+            }
+        }
+
+        double computeLogLikelihood() throws Exception {
+            return observed.logLikelihood(model.computeModelQuantities(requests), model.getPopsAt0());
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package demographicLanguageParser;
 
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+
 /**
  * Main class to create/test demographic model.
  *
@@ -7,6 +10,9 @@ package demographicLanguageParser;
  */
 public class Main {
 
+    // genome size (Morgans) used by -benchmark if none is given, about that of the human genome
+    static final double DEFAULT_GENOME_SIZE = 35.;
+
     /**
      * Main function
      *
@@ -14,6 +20,18 @@ public class Main {
     public static void main(String[] args) throws Exception {
         DemographicLanguageParser model = new DemographicLanguageParser(args[0]);
         model.checkConstraints();
+        if (args.length > 1 && args[1].equals("-benchmark")) {
+            benchmarkAccumulation(model, (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_GENOME_SIZE);
+            return;
+        }
+        if (args.length > 2 && args[1].equals("-checkAdaptive")) {
+            checkAdaptive(model, Double.parseDouble(args[2]));
+            return;
+        }
+        if (args.length > 2 && args[1].equals("-narrate")) {
+            model.narrate(new OutputStreamWriter(System.out), DemographicLanguageParser.NarrateFormat.valueOf(args[2]));
+            return;
+        }
 
         System.out.println("Start: ");
         for (int iter = 0; iter < 1; iter++) {
@@ -35,4 +53,91 @@ public class Main {
             }
         }
     }
+
+    /**
+     * Compares time and results of the accumulation modes, on a histogram of expected segments
+     * @param model the model, with migration matrices built
+     * @param genomeSize genome size (Morgans)
+     */
+    static void benchmarkAccumulation(DemographicLanguageParser model, double genomeSize) throws Exception {
+        int numBins = 20;
+        int reps = 20;
+        DemographicLanguageParser.QuantityRequest[] requests = new DemographicLanguageParser.QuantityRequest[numBins];
+        for (int b = 0; b < numBins; b++) {
+            requests[b] = new DemographicLanguageParser.QuantityRequest(DemographicLanguageParser.QuantityType.expectedNumberOfSegments,
+                    new double[]{0.01 * (b + 1), 0.01 * (b + 2), genomeSize});
+        }
+        DemographicLanguageParser.AccumulationMode[] modes = DemographicLanguageParser.AccumulationMode.values();
+        Matrix[][] results = new Matrix[modes.length][];
+        double[] times = new double[modes.length];
+        for (int m = 0; m < modes.length; m++) {
+            model.setAccumulationMode(modes[m]);
+            // warm up
+            for (int r = 0; r < reps; r++) {
+                results[m] = model.computeModelQuantities(requests);
+            }
+            long start = System.nanoTime();
+            for (int r = 0; r < reps; r++) {
+                results[m] = model.computeModelQuantities(requests);
+            }
+            times[m] = (System.nanoTime() - start) / 1E6 / reps;
+        }
+        model.setAccumulationMode(DemographicLanguageParser.AccumulationMode.plain);
+        // differences are relative to the last mode (logSurvival)
+        Matrix[] reference = results[modes.length - 1];
+        for (int m = 0; m < modes.length; m++) {
+            double maxRel = 0.0;
+            for (int b = 0; b < numBins; b++) {
+                double[] a = results[m][b].getPacked();
+                double[] ref = reference[b].getPacked();
+                for (int p = 0; p < a.length; p++) {
+                    if (ref[p] != 0.0) {
+                        maxRel = Math.max(maxRel, Math.abs(a[p] - ref[p]) / Math.abs(ref[p]));
+                    }
+                }
+            }
+            System.out.println(modes[m] + "\t" + times[m] + " ms/query\t" + (times[m] / times[0]) + "x plain\tmax relative difference " + maxRel);
+        }
+    }
+
+    /**
+     * Compares the adaptive step size engine with the plain one, on coalescent ranges whose ends are inside
+     * each time frame, where steps of the adaptive engine must stop on both sides of the ends
+     * @param model the model, with migration matrices built
+     * @param tolerance error tolerance of the adaptive engine
+     */
+    static void checkAdaptive(DemographicLanguageParser model, double tolerance) throws Exception {
+        ArrayList<DemographicLanguageParser.QuantityRequest> requests = new ArrayList<DemographicLanguageParser.QuantityRequest>();
+        for (TimeFrame frame : model.getFrames()) {
+            long start = frame.intStart;
+            long end = Math.min(frame.intEnd, start + 1000);
+            if (end - start < 4) {
+                continue;
+            }
+            long mid = (start + end) / 2;
+            requests.add(new DemographicLanguageParser.QuantityRequest(DemographicLanguageParser.QuantityType.coalescent,
+                    new double[]{start + 1, mid}));
+            requests.add(new DemographicLanguageParser.QuantityRequest(DemographicLanguageParser.QuantityType.coalescent,
+                    new double[]{mid - 0.5, end - 1.5}));
+            requests.add(new DemographicLanguageParser.QuantityRequest(DemographicLanguageParser.QuantityType.coalescent,
+                    new double[]{mid, mid}));
+        }
+        DemographicLanguageParser.QuantityRequest[] array = requests.toArray(new DemographicLanguageParser.QuantityRequest[requests.size()]);
+        Matrix[] plain = model.computeModelQuantities(array);
+        double previous = model.getAdaptiveTolerance();
+        model.setAdaptiveTolerance(tolerance);
+        Matrix[] adaptive = model.computeModelQuantities(array);
+        model.setAdaptiveTolerance(previous);
+        for (int q = 0; q < array.length; q++) {
+            double[] a = adaptive[q].getPacked();
+            double[] ref = plain[q].getPacked();
+            double maxRel = 0.0;
+            for (int p = 0; p < a.length; p++) {
+                if (ref[p] != 0.0) {
+                    maxRel = Math.max(maxRel, Math.abs(a[p] - ref[p]) / Math.abs(ref[p]));
+                }
+            }
+            System.out.println("coalescent " + array[q].getArgs()[0] + " to " + array[q].getArgs()[1] + "\tmax relative difference " + maxRel);
+        }
+    }
 }
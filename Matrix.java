@@ -1,13 +1,26 @@
 package demographicLanguageParser;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 /**
  *
  * @author Pier Palamara <pier@cs.columbia.edu>
  */
 public class Matrix {
 
+    // block size used by multiplication kernels, chosen so that blocks of rows fit in cache
+    static final int BLOCK_SIZE = 64;
+    // minimum number of rows for which kernels are split across threads
+    static final int PARALLEL_THRESHOLD = 64;
+    // maximum number of rows computed by a single parallel task
+    static final int PARALLEL_GRAIN = 8;
     private String id;
     private Double[][] mat;
+    // packed upper triangle of a symmetric matrix (see packedIndex), null if the matrix is stored in mat
+    private double[] packed = null;
+    // number of rows of the packed matrix
+    private int packedN;
 
     public Matrix(int N) {
         mat = getIdentity(N);
@@ -27,6 +40,12 @@ public class Matrix {
         this.mat = D;
     }
 
+    // symmetric matrix stored as a packed upper triangle, not copied
+    private Matrix(double[] packed, int N) {
+        this.packed = packed;
+        this.packedN = N;
+    }
+
     public Matrix(String id, int N) {
         this.id = id;
         mat = getIdentity(N);
@@ -71,16 +90,50 @@ public class Matrix {
         if (getMat()[0].length != B.length) {
             throw new Exception("inconsistent size of matrices in multiplication: " + getMat().length + "x" + getMat()[0].length + " and " + B.length + "x" + B[0].length);
         }
-        Double[][] res = new Double[getMat().length][B[0].length];
-        for (int i = 0; i < getMat().length; i++) {
-            for (int j = 0; j < B[0].length; j++) {
-                res[i][j] = 0.0;
-                for (int k = 0; k < getMat()[0].length; k++) {
-                    res[i][j] += getMat()[i][k] * B[k][j];
+        setMat(toBoxed(multiply(toPrimitive(getMat()), toPrimitive(B))));
+    }
+
+    // multiply A*B on primitive arrays, using i-k-j order and blocking on k and j for large matrices.
+    // Inner loops use vector instructions if available (see ArrayKernels)
+    static double[][] multiply(double[][] A, double[][] B) {
+        return multiply(A, B, null);
+    }
+
+    // multiply A*B on primitive arrays. If a pool is given, large matrices are split by rows across threads
+    static double[][] multiply(final double[][] A, final double[][] B, ForkJoinPool pool) {
+        final double[][] res = new double[A.length][B[0].length];
+        if (pool == null || A.length < PARALLEL_THRESHOLD) {
+            multiplyRows(A, B, res, 0, A.length);
+        } else {
+            pool.invoke(new RowTask(new RowKernel() {
+
+                public void computeRows(int from, int to) {
+                    multiplyRows(A, B, res, from, to);
+                }
+            }, 0, A.length));
+        }
+        return res;
+    }
+
+    // compute rows from (included) to (excluded) of A*B
+    private static void multiplyRows(double[][] A, double[][] B, double[][] res, int from, int to) {
+        int m = B.length;
+        int p = B[0].length;
+        ArrayKernels kernels = ArrayKernels.get();
+        for (int kk = 0; kk < m; kk += BLOCK_SIZE) {
+            int kEnd = Math.min(kk + BLOCK_SIZE, m);
+            for (int jj = 0; jj < p; jj += BLOCK_SIZE) {
+                int jEnd = Math.min(jj + BLOCK_SIZE, p);
+                for (int i = from; i < to; i++) {
+                    double[] rowA = A[i];
+                    double[] rowRes = res[i];
+                    // zero entries are not skipped, so that infinite and NaN entries of B propagate
+                    for (int k = kk; k < kEnd; k++) {
+                        kernels.axpy(rowA[k], B[k], rowRes, jj, jEnd);
+                    }
                 }
             }
         }
-        setMat(res);
     }
 
     public void sumToMatrix(Matrix mat2) throws Exception {
@@ -100,19 +153,156 @@ public class Matrix {
     // multiply M*N*M', where N is diagonal with elements from array diag
     public static Matrix multiplyDiagSelf(Matrix matrix, Double[] diag) throws Exception {
         Double[][] mat = matrix.getMat();
-        Double[][] res = new Double[mat.length][mat.length];
         if (diag.length != mat[0].length) {
             throw new Exception("size of diagonal matrix does not match #columns of matrix: " + diag.length + " and " + mat[0].length);
         }
-        for (int i = 0; i < mat.length; i++) {
-            for (int j = 0; j < mat.length; j++) {
-                res[i][j] = 0.0;
-                for (int k = 0; k < mat[0].length; k++) {
-                    res[i][j] += mat[i][k] / diag[k] * mat[j][k];
+        return fromPacked(multiplyDiagSelfPacked(toPrimitive(mat), diag), mat.length);
+    }
+
+    // multiply M*N*M' on primitive arrays. The result is symmetric and is returned in packed form (see packedIndex)
+    static double[] multiplyDiagSelfPacked(double[][] mat, Double[] diag) {
+        return multiplyDiagSelfPacked(mat, diag, null);
+    }
+
+    // multiply M*N*M' on primitive arrays. If a pool is given, large matrices are split by rows across threads
+    static double[] multiplyDiagSelfPacked(final double[][] mat, Double[] diag, ForkJoinPool pool) {
+        int m = diag.length;
+        // reciprocal of diagonal, to avoid divisions in the inner loop
+        double[] inv = new double[m];
+        for (int k = 0; k < m; k++) {
+            inv[k] = 1.0 / diag[k];
+        }
+        return multiplyInvDiagSelfPacked(mat, inv, pool);
+    }
+
+    // multiply M*inv(N)*M' on primitive arrays, given the reciprocal of the diagonal of N
+    static double[] multiplyInvDiagSelfPacked(final double[][] mat, double[] inv, ForkJoinPool pool) {
+        final int n = mat.length;
+        int m = inv.length;
+        // rows of M*N
+        final double[][] scaled = new double[n][m];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < m; k++) {
+                scaled[i][k] = mat[i][k] * inv[k];
+            }
+        }
+        final double[] res = new double[getPackedSize(n)];
+        if (pool == null || n < PARALLEL_THRESHOLD) {
+            multiplyDiagSelfRows(mat, scaled, res, 0, n);
+        } else {
+            // row i of the triangle has n - i entries, rows are split by number of entries
+            pool.invoke(new RowTask(new RowKernel() {
+
+                public void computeRows(int from, int to) {
+                    multiplyDiagSelfRows(mat, scaled, res, from, to);
                 }
+            }, 0, n, true));
+        }
+        return res;
+    }
+
+    // compute rows from (included) to (excluded) of the packed upper triangle of scaled*mat'
+    private static void multiplyDiagSelfRows(double[][] mat, double[][] scaled, double[] res, int from, int to) {
+        int n = mat.length;
+        int m = scaled[0].length;
+        ArrayKernels kernels = ArrayKernels.get();
+        int index = packedIndex(from, from, n);
+        for (int i = from; i < to; i++) {
+            double[] rowS = scaled[i];
+            for (int j = i; j < n; j++) {
+                res[index++] = kernels.dot(rowS, mat[j], m);
             }
         }
-        return new Matrix(res);
+    }
+
+    // number of entries in the packed upper triangle of a symmetric NxN matrix
+    static int getPackedSize(int N) {
+        return N * (N + 1) / 2;
+    }
+
+    // position of entry (i, j) in the packed upper triangle of a symmetric NxN matrix, stored row by row
+    static int packedIndex(int i, int j, int N) {
+        if (i > j) {
+            int tmp = i;
+            i = j;
+            j = tmp;
+        }
+        return i * (2 * N - i - 1) / 2 + j;
+    }
+
+    // symmetric matrix from packed upper triangle, which is used as storage and not copied. The full matrix
+    // is only built if getMat is called
+    static Matrix fromPacked(double[] packed, int N) {
+        return new Matrix(packed, N);
+    }
+
+    /**
+     * returns an entry, without building the full matrix of a packed matrix
+     * @param i the row
+     * @param j the column
+     * @return the entry
+     */
+    public double get(int i, int j) {
+        if (packed != null) {
+            return packed[packedIndex(i, j, packedN)];
+        }
+        return mat[i][j];
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public int getNumRows() {
+        return (packed != null) ? packedN : mat.length;
+    }
+
+    /**
+     * returns the packed upper triangle of a symmetric matrix (see packedIndex). For a packed matrix this is
+     * its storage, and must not be modified. Otherwise the upper triangle is copied.
+     * @return the packed upper triangle
+     */
+    public double[] getPacked() {
+        if (packed != null) {
+            return packed;
+        }
+        int N = mat.length;
+        double[] res = new double[getPackedSize(N)];
+        int index = 0;
+        for (int i = 0; i < N; i++) {
+            for (int j = i; j < N; j++) {
+                res[index++] = mat[i][j];
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return true if the matrix is stored as a packed upper triangle
+     */
+    public boolean isPacked() {
+        return packed != null;
+    }
+
+    // copy to primitive array
+    static double[][] toPrimitive(Double[][] D) {
+        double[][] d = new double[D.length][D[0].length];
+        for (int i = 0; i < D.length; i++) {
+            for (int j = 0; j < D[0].length; j++) {
+                d[i][j] = D[i][j];
+            }
+        }
+        return d;
+    }
+
+    // copy to boxed array
+    static Double[][] toBoxed(double[][] d) {
+        Double[][] D = new Double[d.length][d[0].length];
+        for (int i = 0; i < d.length; i++) {
+            for (int j = 0; j < d[0].length; j++) {
+                D[i][j] = d[i][j];
+            }
+        }
+        return D;
     }
 
     public static Double[][] getIdentity(int N) {
@@ -171,6 +361,20 @@ public class Matrix {
      * @return the mat
      */
     public Double[][] getMat() {
+        if (packed != null) {
+            // build the full matrix, which is then used as storage. Entries (i, j) and (j, i) share the same object
+            Double[][] D = new Double[packedN][packedN];
+            int index = 0;
+            for (int i = 0; i < packedN; i++) {
+                for (int j = i; j < packedN; j++) {
+                    Double v = packed[index++];
+                    D[i][j] = v;
+                    D[j][i] = v;
+                }
+            }
+            mat = D;
+            packed = null;
+        }
         return mat;
     }
 
@@ -179,5 +383,102 @@ public class Matrix {
      */
     public void setMat(Double[][] mat) {
         this.mat = mat;
+        this.packed = null;
+    }
+}
+
+/**
+ * Computes a range of rows of a matrix. Used to split kernels across threads
+ */
+interface RowKernel {
+
+    /**
+     * Computes rows in a range
+     * @param from first row (included)
+     * @param to last row (excluded)
+     */
+    void computeRows(int from, int to);
+}
+
+/**
+ * Splits a range of rows in halves until they are small enough to be computed by a RowKernel. Rows either
+ * have the same number of entries, or are rows of an upper triangle, where row i of n has n - i entries.
+ * Triangles are split so that both halves have about the same number of entries.
+ */
+class RowTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+    // the kernel
+    final RowKernel kernel;
+    // range of rows
+    final int from, to;
+    // number of rows of the triangle, 0 if all rows have the same number of entries
+    final int triangleRows;
+
+    /**
+     * Constructor, for rows with the same number of entries
+     * @param kernel the kernel to be applied
+     * @param from first row (included)
+     * @param to last row (excluded)
+     */
+    public RowTask(RowKernel kernel, int from, int to) {
+        this(kernel, from, to, 0);
+    }
+
+    /**
+     * Constructor
+     * @param kernel the kernel to be applied
+     * @param from first row (included)
+     * @param to last row (excluded)
+     * @param triangle true if the rows are rows of an upper triangle with to rows
+     */
+    public RowTask(RowKernel kernel, int from, int to, boolean triangle) {
+        this(kernel, from, to, triangle ? to : 0);
+    }
+
+    private RowTask(RowKernel kernel, int from, int to, int triangleRows) {
+        this.kernel = kernel;
+        this.from = from;
+        this.to = to;
+        this.triangleRows = triangleRows;
+    }
+
+    @Override
+    protected void compute() {
+        boolean small;
+        if (triangleRows == 0) {
+            small = to - from <= Matrix.PARALLEL_GRAIN;
+        } else {
+            // as many entries as PARALLEL_GRAIN rows of average length
+            small = to - from == 1 || 2 * getNumEntries() <= (long) Matrix.PARALLEL_GRAIN * (triangleRows + 1);
+        }
+        if (small) {
+            kernel.computeRows(from, to);
+        } else {
+            int mid = getMiddle();
+            invokeAll(new RowTask(kernel, from, mid, triangleRows), new RowTask(kernel, mid, to, triangleRows));
+        }
+    }
+
+    // number of entries of rows from..to-1 of the triangle, which have n - from, ..., n - to + 1 entries
+    private long getNumEntries() {
+        long n = triangleRows;
+        return (to - from) * (2 * n - from - to + 1) / 2;
+    }
+
+    // first row of the second half, so that both halves have about the same number of entries
+    private int getMiddle() {
+        if (triangleRows == 0) {
+            return (from + to) >>> 1;
+        }
+        long n = triangleRows;
+        long total = getNumEntries();
+        long half = 0;
+        int mid = from;
+        while (mid < to - 1 && 2 * (half + n - mid) <= total) {
+            half += n - mid;
+            mid++;
+        }
+        return Math.max(mid, from + 1);
     }
 }
@@ -0,0 +1,285 @@
+package demographicLanguageParser;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * In-process registry of timers and counters, shared by any number of models and threads. Models
+ * record the time spent parsing, building matrices, answering queries and propagating each frame,
+ * and count matrix operations (see DemographicLanguageParser.setMetrics). Metrics can be printed,
+ * printed periodically, or read through JMX.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class MetricsRegistry {
+
+    // timers, by name
+    private ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    // counters, by name
+    private ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    // thread printing metrics periodically, null if not started
+    private ScheduledExecutorService dumper = null;
+    // name the registry is registered with in JMX, null if not registered
+    private ObjectName objectName = null;
+
+    /**
+     * returns a timer, creating it if needed
+     * @param name name of the timer
+     * @return the timer
+     */
+    public Timer getTimer(String name) {
+        Timer t = timers.get(name);
+        if (t == null) {
+            timers.putIfAbsent(name, new Timer());
+            t = timers.get(name);
+        }
+        return t;
+    }
+
+    /**
+     * returns a counter, creating it if needed
+     * @param name name of the counter
+     * @return the counter
+     */
+    public Counter getCounter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            counters.putIfAbsent(name, new Counter());
+            c = counters.get(name);
+        }
+        return c;
+    }
+
+    /**
+     * Removes all metrics
+     */
+    public void clear() {
+        timers.clear();
+        counters.clear();
+    }
+
+    /**
+     * Prints all metrics, sorted by name
+     * @param out the stream
+     */
+    public void dump(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Timer> e : new TreeMap<String, Timer>(timers).entrySet()) {
+            Timer t = e.getValue();
+            sb.append(e.getKey()).append("\tcount ").append(t.getCount()).append("\ttotal ms ").append(t.getTotalNanos() / 1E6)
+                    .append("\tmax ms ").append(t.getMaxNanos() / 1E6).append('\n');
+        }
+        for (Map.Entry<String, Counter> e : new TreeMap<String, Counter>(counters).entrySet()) {
+            sb.append(e.getKey()).append('\t').append(e.getValue().get()).append('\n');
+        }
+        out.print(sb);
+        out.flush();
+    }
+
+    /**
+     * Prints all metrics periodically, from a daemon thread
+     * @param out the stream
+     * @param periodMillis time between prints (milliseconds)
+     */
+    public synchronized void startPeriodicDump(final PrintStream out, long periodMillis) {
+        stopPeriodicDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        dumper.scheduleAtFixedRate(new Runnable() {
+
+            public void run() {
+                dump(out);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops printing metrics periodically
+     */
+    public synchronized void stopPeriodicDump() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Registers the registry with the platform MBean server. Each timer is exposed as attributes
+     * name.count, name.totalMillis and name.maxMillis, each counter as an attribute with its name.
+     * @param name object name, e.g. "demographicLanguageParser:type=Metrics"
+     */
+    public synchronized void registerMBean(String name) throws Exception {
+        unregisterMBean();
+        objectName = new ObjectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+    }
+
+    /**
+     * Removes the registry from the platform MBean server, if registered
+     */
+    public synchronized void unregisterMBean() throws Exception {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Accumulates durations
+     */
+    public static class Timer {
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * records a duration
+         * @param nanos the duration (nanoseconds)
+         */
+        public void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        /**
+         * records the time elapsed since a start time
+         * @param startNanos the start, as returned by System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * @return the number of recorded durations
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the total duration (nanoseconds)
+         */
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        /**
+         * @return the longest duration (nanoseconds)
+         */
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+    }
+
+    /**
+     * Counts events
+     */
+    public static class Counter {
+
+        private final AtomicLong value = new AtomicLong();
+
+        /**
+         * @param n amount to be added
+         */
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        /**
+         * @return the value
+         */
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * Exposes the metrics as read-only JMX attributes
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (counters.containsKey(attribute)) {
+                return counters.get(attribute).get();
+            }
+            int dot = attribute.lastIndexOf('.');
+            if (dot > 0 && timers.containsKey(attribute.substring(0, dot))) {
+                Timer t = timers.get(attribute.substring(0, dot));
+                String field = attribute.substring(dot + 1);
+                if (field.equals("count")) {
+                    return t.getCount();
+                } else if (field.equals("totalMillis")) {
+                    return t.getTotalNanos() / 1E6;
+                } else if (field.equals("maxMillis")) {
+                    return t.getMaxNanos() / 1E6;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read only.");
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String a : attributes) {
+                try {
+                    list.add(new Attribute(a, getAttribute(a)));
+                } catch (AttributeNotFoundException e) {
+                    // metric removed since the list of attributes was read
+                }
+            }
+            return list;
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            return null;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : new TreeMap<String, Timer>(timers).keySet()) {
+                attributes.add(new MBeanAttributeInfo(name + ".count", "java.lang.Long", "number of times", true, false, false));
+                attributes.add(new MBeanAttributeInfo(name + ".totalMillis", "java.lang.Double", "total time (ms)", true, false, false));
+                attributes.add(new MBeanAttributeInfo(name + ".maxMillis", "java.lang.Double", "longest time (ms)", true, false, false));
+            }
+            for (String name : new TreeMap<String, Counter>(counters).keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+            }
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Timers and counters of demographic models",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package demographicLanguageParser;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -21,6 +22,10 @@ public class MigrationMatrix {
     HashMap<String, Integer> populationIndexIn = new HashMap<String, Integer>();
     // to index
     HashMap<String, Integer> populationIndexOut;
+    // alias tables to sample each row, built lazily
+    private AliasTable[] aliasTables = null;
+    // the values the alias tables were built from
+    private Double[][] aliasSource = null;
 
     /**
      * Constructor
@@ -49,6 +54,7 @@ public class MigrationMatrix {
                     Rate r = e.getMigOut().get(populationsFrom[j]).getR();
                     migMat[i][j] = r.getValue();
                     migMat[i][i] -= migMat[i][j];
+                    r.addMatrix(this);
                     // add i to places where rate r appears
                     TreeSet<Integer> t = (treeIndex.containsKey(r)) ? treeIndex.get(r)
                             : new TreeSet<Integer>();
@@ -65,6 +71,7 @@ public class MigrationMatrix {
                 if (e.getMigOut().containsKey(populationsFrom[j])) {
                     migMat[i][j] = e.getMigOut().get(populationsFrom[j]).getR().getValue();
                     migMat[i][i] -= migMat[i][j];
+                    e.getMigOut().get(populationsFrom[j]).getR().addMatrix(this);
                 } else {
                     // otherwise assume it's 0.0
                     migMat[i][j] = 0.0;
@@ -134,6 +141,31 @@ public class MigrationMatrix {
         this.migMat = new Matrix(migMat);
     }
 
+    /**
+     * checks that the chance of staying in each population is not negative, using current values
+     * of the migration rates (the matrix itself may not have been rebuilt yet)
+     * @return true if all rows are valid
+     */
+    public boolean hasValidRows() {
+        if (populationsTo != populationsFrom) {
+            // transition matrix, not built from rates
+            return true;
+        }
+        for (int i = 0; i < numPopIn; i++) {
+            double stay = 1.0;
+            Edge e = populationsFrom[i];
+            for (int j = 0; j < numPopOut; j++) {
+                if (j != i && e.getMigOut().containsKey(populationsFrom[j])) {
+                    stay -= e.getMigOut().get(populationsFrom[j]).getR().getValue();
+                }
+            }
+            if (stay < -Parameter.getEpsilon()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * returns the migration matrix
      * @return migration matrix
@@ -142,6 +174,30 @@ public class MigrationMatrix {
         return migMat;
     }
 
+    /**
+     * returns alias tables to sample the destination of a lineage from each row of the matrix. Tables are
+     * built the first time they are needed, and built again if the values of the matrix were replaced.
+     * @return one alias table per row
+     */
+    public synchronized AliasTable[] getAliasTables() {
+        if (aliasTables == null || aliasSource != migMat.getMat()) {
+            aliasSource = migMat.getMat();
+            aliasTables = new AliasTable[numPopIn];
+            for (int i = 0; i < numPopIn; i++) {
+                aliasTables[i] = new AliasTable(aliasSource[i]);
+            }
+        }
+        return aliasTables;
+    }
+
+    /**
+     * discards the alias tables, to be called if values in the matrix are changed in place
+     */
+    public synchronized void invalidateAliasTables() {
+        aliasTables = null;
+        aliasSource = null;
+    }
+
     /**
      * returns the number of populations in input the matrix
      * @return the number of populations in output the matrix
@@ -164,28 +220,40 @@ public class MigrationMatrix {
      */
     @Override
     public String toString() {
-        String matrixString = "[";
-        matrixString += populationsFrom[0].getId();
+        StringBuilder sb = new StringBuilder(32 * (numPopIn * numPopOut + numPopIn + numPopOut));
+        try {
+            appendTo(sb);
+        } catch (IOException e) {
+            // StringBuilder does not throw
+        }
+        return sb.toString();
+    }
+
+    /**
+     * appends the printable version of the matrix (see toString), one entry at a time
+     * @param out where the matrix is written
+     */
+    public void appendTo(Appendable out) throws IOException {
+        out.append('[').append(populationsFrom[0].getId());
         for (int i = 1; i < this.populationsFrom.length; i++) {
-            matrixString += ", " + this.populationsFrom[i].getId();
+            out.append(", ").append(this.populationsFrom[i].getId());
         }
-        matrixString += "] -> [" + populationsTo[0].getId();
+        out.append("] -> [").append(populationsTo[0].getId());
         for (int i = 1; i < this.populationsTo.length; i++) {
-            matrixString += ", " + this.populationsTo[i].getId();
+            out.append(", ").append(this.populationsTo[i].getId());
         }
-        matrixString += "]";
-        matrixString += "\n[";
+        out.append("]\n[");
+        Double[][] mat = this.migMat.getMat();
         for (int i = 0; i < this.numPopIn; i++) {
-            matrixString += "\t" + this.migMat.getMat()[i][0];
+            out.append('\t').append(String.valueOf(mat[i][0]));
             for (int j = 1; j < this.numPopOut; j++) {
-                matrixString += ",\t" + this.migMat.getMat()[i][j];
+                out.append(",\t").append(String.valueOf(mat[i][j]));
             }
             if (i != this.numPopIn - 1) {
-                matrixString += "\n";
+                out.append('\n');
             } else {
-                matrixString += "\t]";
+                out.append("\t]");
             }
         }
-        return matrixString;
     }
 }
@@ -0,0 +1,340 @@
+package demographicLanguageParser;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Builds a model directly, without writing and parsing a model file. Each method corresponds to a
+ * command of the model language and is checked in the same way; methods that create variables return
+ * them, so that they can be used as arguments of later calls. Variables created without a name are
+ * named as in parsed models. Constraints are checked by calling checkConstraints on the model, as for
+ * parsed models.
+ * Counters and constants are shared by all models (see Generation.getG0): a model must be built before
+ * another model is parsed or built.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class ModelBuilder {
+
+    // the model being built, null once built
+    private DemographicLanguageParser model;
+    // time at which building started
+    private long startNanos;
+    // variables that can be used in this model: constants and variables created by this builder
+    private IdentityHashMap<Object, Boolean> variables = new IdentityHashMap<Object, Boolean>();
+
+    /**
+     * Starts building a model
+     */
+    public ModelBuilder() {
+        this(null);
+    }
+
+    /**
+     * Starts building a model and records metrics (see DemographicLanguageParser.setMetrics)
+     * @param metrics registry of metrics, or null
+     */
+    public ModelBuilder(MetricsRegistry metrics) {
+        startNanos = System.nanoTime();
+        model = new DemographicLanguageParser(metrics);
+        variables.put(getG0(), true);
+        variables.put(getGinf(), true);
+        variables.put(getR0(), true);
+        variables.put(getR1(), true);
+    }
+
+    /**
+     * @return generation 0
+     */
+    public Generation getG0() {
+        return model.getGenerations().get("G0");
+    }
+
+    /**
+     * @return generation infinity
+     */
+    public Generation getGinf() {
+        return model.getGenerations().get("Ginf");
+    }
+
+    /**
+     * @return rate 0
+     */
+    public Rate getR0() {
+        return model.getRates().get("R0");
+    }
+
+    /**
+     * @return rate 1
+     */
+    public Rate getR1() {
+        return model.getRates().get("R1");
+    }
+
+    /**
+     * Creates a constant Generation, as gen(value)
+     * @param value the generation, an integer
+     * @return the generation
+     */
+    public Generation gen(double value) throws Exception {
+        return gen(null, value, 0);
+    }
+
+    /**
+     * Creates a Generation, as gen(value, gridPoints)
+     * @param value initial value, an integer
+     * @param gridPoints number of grid points, constant if 0
+     * @return the generation
+     */
+    public Generation gen(double value, int gridPoints) throws Exception {
+        return gen(null, value, gridPoints);
+    }
+
+    /**
+     * Creates a named Generation, as name = gen(value, gridPoints)
+     * @param name the name, or null to name it automatically
+     * @param value initial value, an integer
+     * @param gridPoints number of grid points, constant if 0
+     * @return the generation
+     */
+    public Generation gen(String name, double value, int gridPoints) throws Exception {
+        checkName(name);
+        return register(model.addGeneration(name, DemographicLanguageParser.createGeneration(value, gridPoints)));
+    }
+
+    /**
+     * Creates a Generation at an offset from another, as gen(base, offset)
+     * @param base the generation it is offset from
+     * @param offset the offset, at least 1
+     * @return the generation
+     */
+    public Generation gen(Generation base, int offset) throws Exception {
+        return gen(null, base, offset);
+    }
+
+    /**
+     * Creates a named Generation at an offset from another, as name = gen(base, offset)
+     * @param name the name, or null to name it automatically
+     * @param base the generation it is offset from
+     * @param offset the offset, at least 1
+     * @return the generation
+     */
+    public Generation gen(String name, Generation base, int offset) throws Exception {
+        checkName(name);
+        checkVariable(base, "Generation");
+        return register(model.addGeneration(name, new Generation(base, offset)));
+    }
+
+    /**
+     * Creates a constant Size, as size(value)
+     * @param value the size
+     * @return the size
+     */
+    public Size size(double value) throws Exception {
+        return size(null, value, 0);
+    }
+
+    /**
+     * Creates a Size, as size(value, gridPoints)
+     * @param value initial value
+     * @param gridPoints number of grid points, constant if 0
+     * @return the size
+     */
+    public Size size(double value, int gridPoints) throws Exception {
+        return size(null, value, gridPoints);
+    }
+
+    /**
+     * Creates a named Size, as name = size(value, gridPoints)
+     * @param name the name, or null to name it automatically
+     * @param value initial value
+     * @param gridPoints number of grid points, constant if 0
+     * @return the size
+     */
+    public Size size(String name, double value, int gridPoints) throws Exception {
+        checkName(name);
+        return register(model.addSize(name, new Size(value, gridPoints)));
+    }
+
+    /**
+     * Creates a constant Rate, as rate(value)
+     * @param value the rate
+     * @return the rate
+     */
+    public Rate rate(double value) throws Exception {
+        return rate(null, value, 0);
+    }
+
+    /**
+     * Creates a Rate, as rate(value, gridPoints)
+     * @param value initial value
+     * @param gridPoints number of grid points, constant if 0
+     * @return the rate
+     */
+    public Rate rate(double value, int gridPoints) throws Exception {
+        return rate(null, value, gridPoints);
+    }
+
+    /**
+     * Creates a named Rate, as name = rate(value, gridPoints)
+     * @param name the name, or null to name it automatically
+     * @param value initial value
+     * @param gridPoints number of grid points, constant if 0
+     * @return the rate
+     */
+    public Rate rate(String name, double value, int gridPoints) throws Exception {
+        checkName(name);
+        return register(model.addRate(name, new Rate(value, gridPoints)));
+    }
+
+    /**
+     * Creates a Node, as node(gen)
+     * @param gen the generation of the node
+     * @return the node
+     */
+    public Node node(Generation gen) throws Exception {
+        return node(null, gen);
+    }
+
+    /**
+     * Creates a named Node, as name = node(gen)
+     * @param name the name, or null to name it automatically
+     * @param gen the generation of the node
+     * @return the node
+     */
+    public Node node(String name, Generation gen) throws Exception {
+        checkName(name);
+        checkVariable(gen, "Generation");
+        return register(model.addNode(name, new Node(gen)));
+    }
+
+    /**
+     * Creates an Edge with constant size, as edge(n1, n2, s)
+     * @param n1 the more recent node
+     * @param n2 the more ancient node
+     * @param s the size
+     * @return the edge
+     */
+    public Edge edge(Node n1, Node n2, Size s) throws Exception {
+        return edge(null, n1, n2, s, s);
+    }
+
+    /**
+     * Creates an Edge with exponential size, as edge(n1, n2, s1, s2). The size is constant if s1 and s2 are the same
+     * @param n1 the more recent node
+     * @param n2 the more ancient node
+     * @param s1 the size at n1
+     * @param s2 the size at n2
+     * @return the edge
+     */
+    public Edge edge(Node n1, Node n2, Size s1, Size s2) throws Exception {
+        return edge(null, n1, n2, s1, s2);
+    }
+
+    /**
+     * Creates a named Edge with constant size, as name = edge(n1, n2, s)
+     * @param name the name, or null to name it automatically
+     * @param n1 the more recent node
+     * @param n2 the more ancient node
+     * @param s the size
+     * @return the edge
+     */
+    public Edge edge(String name, Node n1, Node n2, Size s) throws Exception {
+        return edge(name, n1, n2, s, s);
+    }
+
+    /**
+     * Creates a named Edge, as name = edge(n1, n2, s1, s2)
+     * @param name the name, or null to name it automatically
+     * @param n1 the more recent node
+     * @param n2 the more ancient node
+     * @param s1 the size at n1
+     * @param s2 the size at n2
+     * @return the edge
+     */
+    public Edge edge(String name, Node n1, Node n2, Size s1, Size s2) throws Exception {
+        checkName(name);
+        checkVariable(n1, "Node");
+        checkVariable(n2, "Node");
+        checkVariable(s1, "Size");
+        checkVariable(s2, "Size");
+        return register(model.addEdge(name, model.createEdge(n1, n2, s1, s2)));
+    }
+
+    /**
+     * Adds a migration between two edges, as migration(from, to, r)
+     * @param from edge migrants come from
+     * @param to edge migrants go to
+     * @param r the rate
+     * @return this builder
+     */
+    public ModelBuilder migration(Edge from, Edge to, Rate r) throws Exception {
+        checkOpen();
+        checkVariable(from, "Edge");
+        checkVariable(to, "Edge");
+        checkVariable(r, "Rate");
+        register(model.addMigration(new Migration(from, to, r)));
+        return this;
+    }
+
+    /**
+     * Adds a conservation constraint, as conservation(n, pivot1, pivot2, ...)
+     * @param n the node
+     * @param pivots the pivots, possibly none
+     * @return this builder
+     */
+    public ModelBuilder conservation(Node n, Size... pivots) throws Exception {
+        checkOpen();
+        checkVariable(n, "Node");
+        for (Size s : pivots) {
+            checkVariable(s, "Size");
+        }
+        model.addConservation(n, pivots);
+        return this;
+    }
+
+    /**
+     * Names unnamed variables and builds the migration matrices. The builder cannot be used afterwards.
+     * @return the model
+     */
+    public DemographicLanguageParser build() throws Exception {
+        checkOpen();
+        DemographicLanguageParser res = model;
+        model = null;
+        res.finishModel(startNanos);
+        return res;
+    }
+
+    // adds a variable to those that can be used in this model
+    private <T> T register(T variable) {
+        variables.put(variable, true);
+        return variable;
+    }
+
+    // throws an exception if the model was built
+    private void checkOpen() throws Exception {
+        if (model == null) {
+            throw new Exception("Model was already built.");
+        }
+    }
+
+    // throws an exception if a name cannot be used, null names are assigned automatically
+    private void checkName(String name) throws Exception {
+        checkOpen();
+        if (name == null) {
+            return;
+        }
+        if (!name.matches("[^\\s=;#(),]+")) {
+            throw new Exception("Invalid variable name: \"" + name + "\"");
+        }
+        model.checkVariableName(name);
+    }
+
+    // throws an exception if a variable was not created for this model
+    private void checkVariable(Object variable, String type) throws Exception {
+        if (variable == null) {
+            throw new Exception(type + " is null.");
+        }
+        if (!variables.containsKey(variable)) {
+            throw new Exception(type + " " + variable + " was not declared in this model.");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package demographicLanguageParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Orders the populations (edges) of a model from the topology of the graph and the values of its
+ * parameters, independently of names and of the order of commands in the model file. Edges are
+ * first told apart by their generations and sizes, then by the edges they descend from, split
+ * into, and exchange migrants with, until no more edges can be told apart. Edges that still cannot
+ * be told apart are ordered by name: they are usually symmetric, and exchanging them does not
+ * change the model.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+class ModelCanonicalizer {
+
+    // the model
+    private final DemographicLanguageParser model;
+    // canonical rank of each edge
+    private final IdentityHashMap<Edge, Integer> edgeRanks = new IdentityHashMap<Edge, Integer>();
+    // edges, in canonical order
+    private final ArrayList<Edge> edges;
+
+    /**
+     * Orders the edges of a model
+     * @param model the model
+     * @param keepStartOrder if true, edges at generation 0 are ordered as in query results
+     * (see getPopsAt0). Otherwise named edges at generation 0 are told apart by their name,
+     * and all other edges by structure only
+     */
+    ModelCanonicalizer(DemographicLanguageParser model, boolean keepStartOrder) {
+        this.model = model;
+        edges = new ArrayList<Edge>(model.getEdges().values());
+        // labels telling apart some edges from the start
+        IdentityHashMap<Edge, String> labels = new IdentityHashMap<Edge, String>();
+        if (keepStartOrder) {
+            Edge[] popsAt0 = model.getPopsAt0();
+            for (int i = 0; i < popsAt0.length; i++) {
+                labels.put(popsAt0[i], String.format("#%09d", i));
+            }
+        } else {
+            HashSet<Edge> unnamed = new HashSet<Edge>(model.getEdgesNoName().values());
+            for (Edge e : edges) {
+                if (e.getN1().getGen() == model.getGenerations().get("G0") && !unnamed.contains(e)) {
+                    labels.put(e, "#" + e.getId());
+                }
+            }
+        }
+        IdentityHashMap<Edge, Integer> colors = new IdentityHashMap<Edge, Integer>();
+        IdentityHashMap<Edge, String> signatures = new IdentityHashMap<Edge, String>();
+        for (Edge e : edges) {
+            String label = labels.containsKey(e) ? labels.get(e) : "";
+            signatures.put(e, label + ";" + e.getN1().getGen().getValue() + ";" + e.getN2().getGen().getValue()
+                    + ";" + e.getS1().getValue() + ";" + ((e.getS1() == e.getS2()) ? "" : e.getS2().getValue()));
+        }
+        int numColors = assignColors(signatures, colors);
+        // refine until no more edges are told apart
+        while (true) {
+            IdentityHashMap<Edge, String> refined = new IdentityHashMap<Edge, String>();
+            for (Edge e : edges) {
+                ArrayList<String> neighbors = new ArrayList<String>();
+                for (Edge p : e.getN1().getInEdges()) {
+                    neighbors.add("p" + colors.get(p));
+                }
+                for (Edge s : e.getN1().getOutEdges()) {
+                    if (s != e) {
+                        neighbors.add("s" + colors.get(s));
+                    }
+                }
+                for (Edge c : e.getN2().getOutEdges()) {
+                    neighbors.add("c" + colors.get(c));
+                }
+                for (Map.Entry<Edge, Migration> m : e.getMigOut().entrySet()) {
+                    neighbors.add("o" + m.getValue().getR().getValue() + ":" + colors.get(m.getKey()));
+                }
+                for (Map.Entry<Edge, Migration> m : e.getMigIn().entrySet()) {
+                    neighbors.add("i" + m.getValue().getR().getValue() + ":" + colors.get(m.getKey()));
+                }
+                Collections.sort(neighbors);
+                // the current color comes first, so that the order of colors is refined
+                StringBuilder sb = new StringBuilder(String.format("%09d", colors.get(e)));
+                for (String n : neighbors) {
+                    sb.append('|').append(n);
+                }
+                refined.put(e, sb.toString());
+            }
+            IdentityHashMap<Edge, Integer> newColors = new IdentityHashMap<Edge, Integer>();
+            int newNumColors = assignColors(refined, newColors);
+            if (newNumColors == numColors) {
+                break;
+            }
+            colors = newColors;
+            numColors = newNumColors;
+        }
+        final IdentityHashMap<Edge, Integer> finalColors = colors;
+        Collections.sort(edges, new Comparator<Edge>() {
+
+            public int compare(Edge e1, Edge e2) {
+                int c = finalColors.get(e1).compareTo(finalColors.get(e2));
+                return (c != 0) ? c : e1.getId().compareTo(e2.getId());
+            }
+        });
+        for (int i = 0; i < edges.size(); i++) {
+            edgeRanks.put(edges.get(i), i);
+        }
+    }
+
+    // numbers signatures in sorted order, returns the number of distinct signatures
+    private static int assignColors(IdentityHashMap<Edge, String> signatures, IdentityHashMap<Edge, Integer> colors) {
+        ArrayList<String> sorted = new ArrayList<String>(new TreeSet<String>(signatures.values()));
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        for (int i = 0; i < sorted.size(); i++) {
+            index.put(sorted.get(i), i);
+        }
+        for (Map.Entry<Edge, String> e : signatures.entrySet()) {
+            colors.put(e.getKey(), index.get(e.getValue()));
+        }
+        return sorted.size();
+    }
+
+    /**
+     * returns the canonical rank of an edge
+     * @param e the edge
+     * @return the rank
+     */
+    int getRank(Edge e) {
+        return edgeRanks.get(e);
+    }
+
+    /**
+     * returns the indices of some populations, sorted by canonical rank
+     * @param populations the populations
+     * @return the permutation
+     */
+    int[] getOrder(final Edge[] populations) {
+        Integer[] order = new Integer[populations.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer i1, Integer i2) {
+                return edgeRanks.get(populations[i1]).compareTo(edgeRanks.get(populations[i2]));
+            }
+        });
+        int[] res = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            res[i] = order[i];
+        }
+        return res;
+    }
+
+    /**
+     * Writes the model in the model language, with variables named and declared in canonical order.
+     * Models that only differ in names, in the order of commands, or in which parameters are named,
+     * have the same canonical form. Named edges at generation 0 keep their name, as do G0, Ginf, R0 and R1.
+     * @return the model
+     */
+    String getCanonicalForm() {
+        Generation G0 = model.getGenerations().get("G0");
+        HashSet<Edge> unnamed = new HashSet<Edge>(model.getEdgesNoName().values());
+        HashSet<String> keptNames = new HashSet<String>();
+        for (Edge e : edges) {
+            if (e.getN1().getGen() == G0 && !unnamed.contains(e)) {
+                keptNames.add(e.getId());
+            }
+        }
+        keptNames.add("G0");
+        keptNames.add("Ginf");
+        keptNames.add("R0");
+        keptNames.add("R1");
+        IdentityHashMap<Object, String> names = new IdentityHashMap<Object, String>();
+        names.put(G0, "G0");
+        names.put(model.getGenerations().get("Ginf"), "Ginf");
+        names.put(model.getRates().get("R0"), "R0");
+        names.put(model.getRates().get("R1"), "R1");
+        StringBuilder gens = new StringBuilder();
+        StringBuilder sizes = new StringBuilder();
+        StringBuilder rates = new StringBuilder();
+        StringBuilder nodes = new StringBuilder();
+        StringBuilder edgeDecl = new StringBuilder();
+        StringBuilder migrations = new StringBuilder();
+        StringBuilder conservations = new StringBuilder();
+        // number of names given to nodes, edges, rates, generations and sizes
+        int[] counters = new int[6];
+        for (Edge e : edges) {
+            for (Node n : new Node[]{e.getN1(), e.getN2()}) {
+                if (!names.containsKey(n)) {
+                    String gen = declareGeneration(n.getGen(), names, keptNames, counters, gens);
+                    String name = newName("N", counters, 1, keptNames);
+                    names.put(n, name);
+                    nodes.append(name).append(" = node(").append(gen).append(");\n");
+                }
+            }
+            for (Size s : new Size[]{e.getS1(), e.getS2()}) {
+                declareSize(s, names, keptNames, counters, sizes);
+            }
+        }
+        for (Edge e : edges) {
+            boolean keepName = e.getN1().getGen() == G0 && !unnamed.contains(e);
+            String name = keepName ? e.getId() : newName("E", counters, 2, keptNames);
+            names.put(e, name);
+            edgeDecl.append(name).append(" = edge(").append(names.get(e.getN1())).append(", ").append(names.get(e.getN2()))
+                    .append(", ").append(names.get(e.getS1()));
+            if (e.getS1() != e.getS2()) {
+                edgeDecl.append(", ").append(names.get(e.getS2()));
+            }
+            edgeDecl.append(");\n");
+        }
+        for (Edge e : edges) {
+            ArrayList<Edge> targets = new ArrayList<Edge>(e.getMigOut().keySet());
+            Collections.sort(targets, new Comparator<Edge>() {
+
+                public int compare(Edge e1, Edge e2) {
+                    return edgeRanks.get(e1).compareTo(edgeRanks.get(e2));
+                }
+            });
+            for (Edge t : targets) {
+                Rate r = e.getMigOut().get(t).getR();
+                if (!names.containsKey(r)) {
+                    String name = newName("R", counters, 3, keptNames);
+                    names.put(r, name);
+                    rates.append(name).append(" = rate(").append(r.getValue()).append(", ").append(r.getGridPoints()).append(");\n");
+                }
+                migrations.append("migration(").append(names.get(e)).append(", ").append(names.get(t)).append(", ")
+                        .append(names.get(r)).append(");\n");
+            }
+        }
+        HashSet<Node> conserved = new HashSet<Node>();
+        for (Edge e : edges) {
+            for (Node n : new Node[]{e.getN1(), e.getN2()}) {
+                if (n.isConserved() && conserved.add(n)) {
+                    conservations.append("conservation(").append(names.get(n));
+                    ArrayList<String> pivots = new ArrayList<String>();
+                    for (Size s : n.getPivot()) {
+                        declareSize(s, names, keptNames, counters, sizes);
+                        pivots.add(names.get(s));
+                    }
+                    Collections.sort(pivots);
+                    for (String p : pivots) {
+                        conservations.append(", ").append(p);
+                    }
+                    conservations.append(");\n");
+                }
+            }
+        }
+        return gens.append(sizes).append(rates).append(nodes).append(edgeDecl).append(migrations).append(conservations).toString();
+    }
+
+    // declares a generation and the generations it depends on, if not declared yet, and returns its name
+    private String declareGeneration(Generation g, IdentityHashMap<Object, String> names, HashSet<String> keptNames,
+            int[] counters, StringBuilder gens) {
+        if (names.containsKey(g)) {
+            return names.get(g);
+        }
+        String decl;
+        if (g.isIsOffset()) {
+            decl = "gen(" + declareGeneration(g.getOffsetGeneration(), names, keptNames, counters, gens) + ", " + g.getOffset() + ")";
+        } else {
+            decl = "gen(" + Math.round(g.getValue()) + ", " + g.getGridPoints() + ")";
+        }
+        String name = newName("G", counters, 4, keptNames);
+        names.put(g, name);
+        gens.append(name).append(" = ").append(decl).append(";\n");
+        return name;
+    }
+
+    // declares a size if not declared yet
+    private void declareSize(Size s, IdentityHashMap<Object, String> names, HashSet<String> keptNames, int[] counters, StringBuilder sizes) {
+        if (!names.containsKey(s)) {
+            String name = newName("S", counters, 5, keptNames);
+            names.put(s, name);
+            sizes.append(name).append(" = size(").append(s.getValue()).append(", ").append(s.getGridPoints()).append(");\n");
+        }
+    }
+
+    // next name with a prefix, not clashing with names that are kept
+    private static String newName(String prefix, int[] counters, int counter, HashSet<String> keptNames) {
+        String name = prefix + (++counters[counter]);
+        while (keptNames.contains(name)) {
+            name = prefix + name;
+        }
+        return name;
+    }
+}
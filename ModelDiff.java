@@ -0,0 +1,97 @@
+package demographicLanguageParser;
+
+/**
+ * Structural comparison of two models, frame by frame. Frames are compared by content (generations,
+ * matrices and population sizes), not by names, so that models generated from the same base model
+ * can share the computation of the frames they have in common (see IncrementalEvaluator).
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class ModelDiff {
+
+    /**
+     * returns the first frame that differs between two models, as built by the last call to
+     * buildMigrationMatrices. Coalescence is computed in the same way in both models up to that frame,
+     * and the state at its start is the same.
+     * @param base the first model
+     * @param other the second model
+     * @return index of the first differing frame, or the number of frames if the models are identical
+     */
+    public static int getFirstDifferingFrame(DemographicLanguageParser base, DemographicLanguageParser other) {
+        int numFrames = Math.min(base.getFrames().size(), other.getFrames().size());
+        for (int f = 0; f < numFrames; f++) {
+            if (!isSameFrame(base.getFrames().get(f), other.getFrames().get(f))) {
+                return f;
+            }
+        }
+        return numFrames;
+    }
+
+    /**
+     * returns true if two frames compute the same coalescence from the same state
+     * @param f1 the first frame
+     * @param f2 the second frame
+     * @return true if the frames have the same generations, matrices and population sizes
+     */
+    public static boolean isSameFrame(TimeFrame f1, TimeFrame f2) {
+        if (f1.intStart != f2.intStart || f1.intEnd != f2.intEnd || f1.Gend.getValue().doubleValue() != f2.Gend.getValue().doubleValue()) {
+            return false;
+        }
+        if (!isSameMatrix(f1.migration, f2.migration)) {
+            return false;
+        }
+        Edge[] pops1 = f1.migration.populationsFrom;
+        Edge[] pops2 = f2.migration.populationsFrom;
+        for (int i = 0; i < pops1.length; i++) {
+            if (!isSamePopulation(pops1[i], pops2[i])) {
+                return false;
+            }
+        }
+        int numTransitions = (f1.transitions == null) ? 0 : f1.transitions.size();
+        if (numTransitions != ((f2.transitions == null) ? 0 : f2.transitions.size())) {
+            return false;
+        }
+        for (int t = 0; t < numTransitions; t++) {
+            MigrationMatrix t1 = f1.transitions.get(t);
+            MigrationMatrix t2 = f2.transitions.get(t);
+            if (!isSameMatrix(t1, t2)) {
+                return false;
+            }
+            // sizes after the last transition are used at the last generation
+            if (t == numTransitions - 1) {
+                for (int i = 0; i < t1.populationsTo.length; i++) {
+                    if (!isSamePopulation(t1.populationsTo[i], t2.populationsTo[i])) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // true if two matrices have the same dimensions and entries
+    private static boolean isSameMatrix(MigrationMatrix m1, MigrationMatrix m2) {
+        if (m1.numPopIn != m2.numPopIn || m1.numPopOut != m2.numPopOut) {
+            return false;
+        }
+        Double[][] mat1 = m1.getMigMatrix().getMat();
+        Double[][] mat2 = m2.getMigMatrix().getMat();
+        for (int i = 0; i < m1.numPopIn; i++) {
+            for (int j = 0; j < m1.numPopOut; j++) {
+                if (mat1[i][j].doubleValue() != mat2[i][j].doubleValue()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // true if two populations have the same sizes at all generations (see Edge.getSizeAt)
+    private static boolean isSamePopulation(Edge e1, Edge e2) {
+        return e1.getN1().getGen().getValue().doubleValue() == e2.getN1().getGen().getValue().doubleValue()
+                && e1.getN2().getGen().getValue().doubleValue() == e2.getN2().getGen().getValue().doubleValue()
+                && e1.getS1().getValue().doubleValue() == e2.getS1().getValue().doubleValue()
+                && e1.getS2().getValue().doubleValue() == e2.getS2().getValue().doubleValue()
+                && (e1.getS1() == e1.getS2()) == (e2.getS1() == e2.getS2())
+                && e1.getN1().getSumOfOutGoing() == e2.getN1().getSumOfOutGoing();
+    }
+}
@@ -0,0 +1,300 @@
+package demographicLanguageParser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Fits the free parameters of a demographic model to observed IBD sharing, maximizing a Poisson
+ * composite likelihood with a pattern search. The candidate points of each iteration are evaluated
+ * in parallel, each thread using its own copy of the model.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class ModelFitter {
+
+    // model copies that are not currently used by an evaluation
+    private LinkedBlockingQueue<DemographicLanguageParser> models = new LinkedBlockingQueue<DemographicLanguageParser>();
+    // threads evaluating the likelihood
+    private ExecutorService executor;
+    // observed data
+    private ObservedSharing observed;
+    // quantities required to compute the likelihood, computed in one pass
+    private DemographicLanguageParser.QuantityRequest[] requests;
+    // names of the free parameters
+    private String[] parameterNames;
+    // free parameters of the first model copy, used for their type
+    private Parameter[] parameters;
+    // value of the free parameters in the parsed model
+    private double[] initialValues;
+    // best values found by the last fit
+    private double[] bestValues;
+    // log-likelihood at the best values
+    private double bestLogLikelihood = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Constructor. Parses one copy of the model for each thread.
+     * @param filename name of file containing demography
+     * @param observed observed IBD sharing
+     * @param genomeSize size of the genome (Morgans)
+     * @param numThreads number of likelihood evaluations run in parallel
+     * @throws Exception
+     */
+    public ModelFitter(String filename, ObservedSharing observed, double genomeSize, int numThreads) throws Exception {
+        this.observed = observed;
+        this.requests = observed.getRequests(genomeSize);
+        for (int i = 0; i < Math.max(1, numThreads); i++) {
+            DemographicLanguageParser model = new DemographicLanguageParser(filename);
+            // copies always hold valid values, so that only constraints of changed parameters are checked
+            model.checkConstraints();
+            models.add(model);
+        }
+        TreeMap<String, Parameter> free = models.peek().getFreeParameters();
+        parameterNames = free.keySet().toArray(new String[free.size()]);
+        parameters = free.values().toArray(new Parameter[free.size()]);
+        initialValues = new double[parameterNames.length];
+        for (int i = 0; i < parameterNames.length; i++) {
+            initialValues[i] = parameters[i].getValue();
+        }
+        executor = Executors.newFixedThreadPool(Math.max(1, numThreads));
+    }
+
+    /**
+     * Computes the composite log-likelihood for a set of parameter values
+     * @param values values of the free parameters, in the order of getParameterNames()
+     * @return the log-likelihood, or negative infinity if the values violate a constraint
+     */
+    public double logLikelihood(double[] values) throws Exception {
+        return logLikelihood(values, -1, 0.0, null);
+    }
+
+    /**
+     * Computes the composite log-likelihood after moving one parameter from a set of values. The move is
+     * projected onto the range of the parameter and made with tryUpdate, so that the pivots of conserved
+     * nodes are rebalanced.
+     * @param values values of the free parameters, in the order of getParameterNames()
+     * @param moved index of the parameter moved, or -1 to evaluate the values
+     * @param target value the parameter is moved to
+     * @param used filled with the values after the move (including rebalanced pivots), may be null
+     * @return the log-likelihood, or negative infinity if the values violate a constraint
+     */
+    private double logLikelihood(double[] values, int moved, double target, double[] used) throws Exception {
+        DemographicLanguageParser model = models.take();
+        try {
+            if (!setValues(model, values)) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            if (moved != -1) {
+                Parameter p = model.getParameters().get(parameterNames[moved]);
+                // parameters changed by the move, with their previous values
+                HashMap<Parameter, Double> changed = new HashMap<Parameter, Double>();
+                double increment = project(p, target) - p.getValue();
+                if (increment != 0.0 && p.tryUpdate(increment, changed) != 0) {
+                    return Double.NEGATIVE_INFINITY;
+                }
+                try {
+                    model.rebuild();
+                    if (p instanceof Generation) {
+                        model.checkMigrationMatrices();
+                    }
+                } catch (Exception e) {
+                    // restore valid values, and the matrices later moves of rates are checked on
+                    Parameter.restore(changed);
+                    model.rebuild();
+                    return Double.NEGATIVE_INFINITY;
+                }
+            }
+            if (used != null) {
+                for (int i = 0; i < parameterNames.length; i++) {
+                    used[i] = model.getParameters().get(parameterNames[i]).getValue();
+                }
+            }
+            return observed.logLikelihood(model.computeModelQuantities(requests), model.getPopsAt0());
+        } finally {
+            models.put(model);
+        }
+    }
+
+    /**
+     * Sets the free parameters of a model copy and rebuilds it. The copy is unchanged if the values
+     * violate a constraint.
+     * @param model the model copy
+     * @param values values of the free parameters, in the order of getParameterNames()
+     * @return true if the values satisfy all constraints
+     */
+    private boolean setValues(DemographicLanguageParser model, double[] values) throws Exception {
+        double[] previous = new double[parameterNames.length];
+        boolean changed = false;
+        for (int i = 0; i < parameterNames.length; i++) {
+            Parameter p = model.getParameters().get(parameterNames[i]);
+            previous[i] = p.getValue();
+            if (values[i] != previous[i]) {
+                p.setValue(values[i]);
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return true;
+        }
+        try {
+            for (int i = 0; i < parameterNames.length; i++) {
+                Parameter p = model.getParameters().get(parameterNames[i]);
+                if (values[i] != previous[i] && !(p instanceof Rate)) {
+                    model.checkConstraints(p);
+                }
+            }
+            // rates are checked on the matrices of the new generations
+            model.rebuild();
+            model.checkMigrationMatrices();
+        } catch (Exception e) {
+            for (int i = 0; i < parameterNames.length; i++) {
+                model.getParameters().get(parameterNames[i]).setValue(previous[i]);
+            }
+            model.rebuild();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Projects a value onto the range of a parameter, given the values of the other parameters
+     * @param p the parameter
+     * @param value the value
+     * @return the closest value in range
+     */
+    private static double project(Parameter p, double value) {
+        double[] range;
+        if (p instanceof Generation) {
+            range = ((Generation) p).getUpdateRange();
+            value = Math.round(value);
+        } else if (p instanceof Size) {
+            range = new double[]{((Size) p).getMin(), ((Size) p).getMax()};
+        } else {
+            range = new double[]{((Rate) p).getMin(), ((Rate) p).getMax()};
+        }
+        return Math.min(Math.max(value, range[0]), range[1]);
+    }
+
+    /**
+     * Maximizes the likelihood with a compass search. At each iteration every free parameter is moved up
+     * and down by the current step, all candidates are evaluated in parallel and the best is kept. Moves
+     * are projected onto the range of parameters, and sizes in conserved nodes move with their pivots.
+     * The step is halved when no candidate improves the likelihood.
+     * @param initialStep initial step, relative to parameter values or to the smallest scale of their type
+     * @param minStep the search stops when the step is smaller than this
+     * @param maxIterations maximum number of iterations
+     * @return the best parameter values, in the order of getParameterNames()
+     */
+    public double[] fit(double initialStep, double minStep, int maxIterations) throws Exception {
+        double[] x = initialValues.clone();
+        double fx = logLikelihood(x);
+        if (fx == Double.NEGATIVE_INFINITY) {
+            throw new Exception("Initial parameter values violate constraints or have zero likelihood.");
+        }
+        double step = initialStep;
+        for (int iter = 0; iter < maxIterations && step >= minStep; iter++) {
+            ArrayList<Callable<Double>> tasks = new ArrayList<Callable<Double>>();
+            // values after each move
+            ArrayList<double[]> candidates = new ArrayList<double[]>();
+            for (int i = 0; i < x.length; i++) {
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    final double target = move(i, x[i], sign * step);
+                    if (target == x[i]) {
+                        continue;
+                    }
+                    final double[] base = x;
+                    final int moved = i;
+                    final double[] used = new double[x.length];
+                    candidates.add(used);
+                    tasks.add(new Callable<Double>() {
+
+                        public Double call() throws Exception {
+                            return logLikelihood(base, moved, target, used);
+                        }
+                    });
+                }
+            }
+            List<Future<Double>> results = executor.invokeAll(tasks);
+            int best = -1;
+            double bestValue = fx;
+            for (int c = 0; c < candidates.size(); c++) {
+                double value = results.get(c).get();
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = c;
+                }
+            }
+            if (best == -1) {
+                step /= 2.0;
+            } else {
+                x = candidates.get(best);
+                fx = bestValue;
+            }
+            if (DemographicLanguageParser.debugIsOn()) {
+                System.out.println("iteration " + iter + " step " + step + " log-likelihood " + fx);
+            }
+        }
+        bestValues = x;
+        bestLogLikelihood = fx;
+        return x.clone();
+    }
+
+    /**
+     * Moves a parameter by a step relative to its value, at least relative to the smallest scale of its type
+     * (see MCMCSampler.MIN_GENERATION_SCALE, MIN_SIZE_SCALE and MIN_RATE_SCALE), so that parameters at 0 can
+     * move. Generations are moved by an integer amount. The new value is projected onto the range of the
+     * parameter when evaluated.
+     * @param i index of the parameter
+     * @param value current value
+     * @param step relative step (signed)
+     * @return the new value
+     */
+    private double move(int i, double value, double step) {
+        if (parameters[i] instanceof Generation) {
+            double scale = Math.max(Math.abs(value), MCMCSampler.MIN_GENERATION_SCALE);
+            return value + Math.signum(step) * Math.max(1.0, Math.round(Math.abs(step) * scale));
+        }
+        double minScale = (parameters[i] instanceof Size) ? MCMCSampler.MIN_SIZE_SCALE : MCMCSampler.MIN_RATE_SCALE;
+        return value + step * Math.max(Math.abs(value), minScale);
+    }
+
+    /**
+     * Stops the evaluation threads
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return the parameterNames
+     */
+    public String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @return the initialValues
+     */
+    public double[] getInitialValues() {
+        return initialValues;
+    }
+
+    /**
+     * @return the bestValues
+     */
+    public double[] getBestValues() {
+        return bestValues;
+    }
+
+    /**
+     * @return the bestLogLikelihood
+     */
+    public double getBestLogLikelihood() {
+        return bestLogLikelihood;
+    }
+}
@@ -0,0 +1,370 @@
+package demographicLanguageParser;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * Computes a model quantity together with its derivatives with respect to size and rate parameters.
+ * Tangents of the state, sizes, migration and transition matrices are propagated along with the state
+ * (forward-mode differentiation), so that all derivatives are obtained in a single pass over the frames.
+ * Generations are integer-valued in this model and are not differentiated.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class ModelSensitivity {
+
+    // the model
+    private DemographicLanguageParser model;
+    // parameters with respect to which derivatives are computed
+    private Parameter[] parameters;
+    // position of each parameter in the parameters array
+    private HashMap<Parameter, Integer> parameterIndex = new HashMap<Parameter, Integer>();
+
+    /**
+     * Constructor, computes derivatives with respect to all non-constant sizes and rates
+     * @param model the model
+     * @throws Exception
+     */
+    public ModelSensitivity(DemographicLanguageParser model) throws Exception {
+        this(model, getFreeSizesAndRates(model));
+    }
+
+    /**
+     * Constructor
+     * @param model the model
+     * @param parameters sizes and rates with respect to which derivatives are computed
+     * @throws Exception
+     */
+    public ModelSensitivity(DemographicLanguageParser model, Parameter[] parameters) throws Exception {
+        this.model = model;
+        this.parameters = parameters;
+        for (int p = 0; p < parameters.length; p++) {
+            if (!(parameters[p] instanceof Size) && !(parameters[p] instanceof Rate)) {
+                throw new Exception("Derivatives are only available for sizes and rates, not for " + parameters[p].getId());
+            }
+            parameterIndex.put(parameters[p], p);
+        }
+    }
+
+    /**
+     * returns all non-constant sizes and rates of a model, sorted by name
+     * @param model the model
+     * @return array of parameters
+     */
+    private static Parameter[] getFreeSizesAndRates(DemographicLanguageParser model) {
+        TreeMap<String, Parameter> free = new TreeMap<String, Parameter>();
+        for (Parameter p : model.getParameters().values()) {
+            if (!p.isConstant && (p instanceof Size || p instanceof Rate)) {
+                free.put(p.getId(), p);
+            }
+        }
+        return free.values().toArray(new Parameter[free.size()]);
+    }
+
+    /**
+     * Compute coalescent probability, or expected fraction of genome shared, or expected number of segments in range,
+     * and its derivatives.
+     * @return the quantity for each population pair and its derivative with respect to each parameter
+     */
+    public QuantityGradient compute(DemographicLanguageParser.QuantityType type, double[] args) throws Exception {
+        DemographicLanguageParser.checkQuantityArguments(type, args);
+        int n = model.getNumStartPops();
+        int numParams = parameters.length;
+        int numPairs = Matrix.getPackedSize(n);
+        double[][] state = Matrix.toPrimitive(Matrix.getIdentity(n));
+        double[][][] dState = new double[numParams][n][n];
+        double[] probCoal = new double[numPairs];
+        double[] probNotCoal = new double[numPairs];
+        double[] res = new double[numPairs];
+        double[][] dProbCoal = new double[numParams][numPairs];
+        double[][] dRes = new double[numParams][numPairs];
+        for (int i = 0; i < numPairs; i++) {
+            probNotCoal[i] = 1.0;
+        }
+        int g = 0;
+        for (TimeFrame frame : model.getFrames()) {
+            if (frame.migration.populationsTo.length == 1 && frame.intEnd == TimeFrame.MAX_TIME) {
+                if (type == DemographicLanguageParser.QuantityType.expectedNumberOfSegments) {
+                    Node node = frame.migration.populationsTo[0].getN1();
+                    double A = node.getSumOfOutGoing();
+                    double maxGenD = (double) frame.intStart + 0.5; // integral starts from maxGen+1/2
+                    double val = getTail(A, maxGenD, args[0], args[2]) - getTail(A, maxGenD, args[1], args[2]);
+                    double dValdA = getTailDerivative(A, maxGenD, args[0], args[2]) - getTailDerivative(A, maxGenD, args[1], args[2]);
+                    for (int pair = 0; pair < numPairs; pair++) {
+                        res[pair] += val;
+                    }
+                    for (Edge e : node.getOutEdges()) {
+                        Integer p = parameterIndex.get(e.getS1());
+                        if (p != null) {
+                            for (int pair = 0; pair < numPairs; pair++) {
+                                dRes[p][pair] += dValdA;
+                            }
+                        }
+                    }
+                    return new QuantityGradient(res, dRes, n, parameters);
+                }
+                System.err.println("Warning: efficient method not implemented. Using iterative method.");
+            }
+            int length = frame.intEnd - frame.intStart;
+            double[] factors = new double[length];
+            DemographicLanguageParser.fillQuantityFactors(type, args, g + 1, factors);
+            double[][] migMat = Matrix.toPrimitive(frame.migration.getMigMatrix().getMat());
+            double[][][] dMigMat = getMatrixDerivatives(frame.migration);
+            for (int j = 1; j <= length; j++) {
+                g++;
+                state = propagate(state, dState, migMat, dMigMat);
+                Edge[] populations = frame.migration.populationsFrom;
+                double time = (j < length) ? frame.intStart + j : frame.Gend.getValue();
+                if (j == length && frame.transitions != null) {
+                    for (MigrationMatrix transition : frame.transitions) {
+                        state = propagate(state, dState, Matrix.toPrimitive(transition.getMigMatrix().getMat()),
+                                getMatrixDerivatives(transition));
+                    }
+                    populations = frame.transitions.get(frame.transitions.size() - 1).populationsTo;
+                    time = frame.intEnd;
+                }
+                double[] sizes = new double[populations.length];
+                double[][] dSizes = new double[numParams][populations.length];
+                fillSizes(populations, time, sizes, dSizes);
+                double[][] dCoal = new double[numParams][];
+                double[] coal = getCoalescence(state, dState, sizes, dSizes, dCoal);
+                double factor = factors[j - 1];
+                for (int pair = 0; pair < numPairs; pair++) {
+                    double newCoal = coal[pair] * probNotCoal[pair];
+                    for (int p = 0; p < numParams; p++) {
+                        double dNewCoal = dCoal[p][pair] * probNotCoal[pair] - coal[pair] * dProbCoal[p][pair];
+                        dProbCoal[p][pair] += dNewCoal;
+                        dRes[p][pair] += dNewCoal * factor;
+                    }
+                    probCoal[pair] += newCoal;
+                    res[pair] += newCoal * factor;
+                    probNotCoal[pair] = 1.0 - probCoal[pair];
+                }
+            }
+        }
+        return new QuantityGradient(res, dRes, n, parameters);
+    }
+
+    /**
+     * Multiplies the state by a matrix, and updates tangents as dS*M + S*dM
+     * @param state the state
+     * @param dState tangents of the state, replaced with the updated tangents
+     * @param mat the matrix
+     * @param dMat tangents of the matrix, null for parameters that do not appear in it
+     * @return the updated state
+     */
+    private double[][] propagate(double[][] state, double[][][] dState, double[][] mat, double[][][] dMat) {
+        for (int p = 0; p < parameters.length; p++) {
+            double[][] d = Matrix.multiply(dState[p], mat, model.getPool());
+            if (dMat[p] != null) {
+                double[][] dm = Matrix.multiply(state, dMat[p], model.getPool());
+                for (int i = 0; i < d.length; i++) {
+                    for (int k = 0; k < d[0].length; k++) {
+                        d[i][k] += dm[i][k];
+                    }
+                }
+            }
+            dState[p] = d;
+        }
+        return Matrix.multiply(state, mat, model.getPool());
+    }
+
+    /**
+     * Derivatives of a migration or transition matrix with respect to the parameters
+     * @param m the matrix
+     * @return one matrix per parameter, null if the parameter does not appear in m
+     */
+    private double[][][] getMatrixDerivatives(MigrationMatrix m) {
+        double[][][] d = new double[parameters.length][][];
+        if (m.populationsTo == m.populationsFrom) {
+            // migration matrix: off-diagonal entries are rates, the diagonal is 1 minus their sum
+            for (int i = 0; i < m.numPopIn; i++) {
+                Edge e = m.populationsFrom[i];
+                for (int j = 0; j < m.numPopOut; j++) {
+                    Migration mig = e.getMigOut().get(m.populationsFrom[j]);
+                    if (j == i || mig == null) {
+                        continue;
+                    }
+                    Integer p = parameterIndex.get(mig.getR());
+                    if (p != null) {
+                        if (d[p] == null) {
+                            d[p] = new double[m.numPopIn][m.numPopOut];
+                        }
+                        d[p][i][j] += 1.0;
+                        d[p][i][i] -= 1.0;
+                    }
+                }
+            }
+        } else {
+            // transition matrix: ending edges move to outgoing edges with probability proportional to their start size
+            for (int i = 0; i < m.numPopIn; i++) {
+                Edge e = m.populationsFrom[i];
+                if (m.populationIndexOut.containsKey(e.getId())) {
+                    continue;
+                }
+                double sum = e.getN2().getSumOfOutGoing();
+                for (Edge eOut : e.getN2().getOutEdges()) {
+                    int to = m.populationIndexOut.get(eOut.getId());
+                    double prob = eOut.getS1().getValue() / sum;
+                    for (Edge eOther : e.getN2().getOutEdges()) {
+                        Integer p = parameterIndex.get(eOther.getS1());
+                        if (p != null) {
+                            if (d[p] == null) {
+                                d[p] = new double[m.numPopIn][m.numPopOut];
+                            }
+                            d[p][i][to] += ((eOther == eOut ? 1.0 : 0.0) - prob) / sum;
+                        }
+                    }
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Computes sizes of populations at a time, and their derivatives (see Edge.getSizeAt)
+     * @param populations the populations
+     * @param time the time
+     * @param sizes filled with sizes
+     * @param dSizes filled with derivatives of sizes, one row per parameter
+     */
+    private void fillSizes(Edge[] populations, double time, double[] sizes, double[][] dSizes) throws Exception {
+        for (int i = 0; i < populations.length; i++) {
+            Edge e = populations[i];
+            sizes[i] = e.getSizeAt(time);
+            if (e.getS1() == e.getS2()) {
+                addSizeDerivative(dSizes, e.getS1(), i, 1.0);
+            } else {
+                // C * (A / C)^x, with x = time / G
+                double x = time / (e.getN2().getGen().getValue() - e.getN1().getGen().getValue());
+                addSizeDerivative(dSizes, e.getS1(), i, sizes[i] * (1 - x) / e.getS1().getValue());
+                addSizeDerivative(dSizes, e.getS2(), i, sizes[i] * x / e.getS2().getValue());
+            }
+        }
+    }
+
+    // adds to the derivative of size i with respect to s, if s is one of the parameters
+    private void addSizeDerivative(double[][] dSizes, Size s, int i, double value) {
+        Integer p = parameterIndex.get(s);
+        if (p != null) {
+            dSizes[p][i] += value;
+        }
+    }
+
+    /**
+     * Computes the packed matrix S*diag(1/N)*S' and its derivatives
+     * @param state the state S
+     * @param dState tangents of the state
+     * @param sizes the sizes N
+     * @param dSizes tangents of the sizes
+     * @param dCoal filled with the packed derivatives, one per parameter
+     * @return the packed matrix
+     */
+    private double[] getCoalescence(double[][] state, double[][][] dState, double[] sizes, double[][] dSizes, double[][] dCoal) {
+        int n = state.length;
+        int m = sizes.length;
+        double[] inv = new double[m];
+        for (int k = 0; k < m; k++) {
+            inv[k] = 1.0 / sizes[k];
+        }
+        double[] coal = new double[Matrix.getPackedSize(n)];
+        int index = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                double sum = 0.0;
+                for (int k = 0; k < m; k++) {
+                    sum += state[i][k] * inv[k] * state[j][k];
+                }
+                coal[index++] = sum;
+            }
+        }
+        for (int p = 0; p < parameters.length; p++) {
+            double[][] dS = dState[p];
+            // derivative of 1/N
+            double[] dInv = new double[m];
+            for (int k = 0; k < m; k++) {
+                dInv[k] = -dSizes[p][k] * inv[k] * inv[k];
+            }
+            dCoal[p] = new double[coal.length];
+            index = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = i; j < n; j++) {
+                    double sum = 0.0;
+                    for (int k = 0; k < m; k++) {
+                        sum += (dS[i][k] * state[j][k] + state[i][k] * dS[j][k]) * inv[k]
+                                + state[i][k] * state[j][k] * dInv[k];
+                    }
+                    dCoal[p][index++] = sum;
+                }
+            }
+        }
+        return coal;
+    }
+
+    // closed form for the expected number of segments longer than w coalescing after maxGenD in a population of size A
+    private static double getTail(double A, double maxGenD, double w, double G) {
+        return (2 * G * (A + maxGenD + 2 * A * maxGenD * w)) / (Math.exp(maxGenD * (1 / A + 2 * w)) * Math.pow((1 + 2 * A * w), 2));
+    }
+
+    // derivative of getTail with respect to A
+    private static double getTailDerivative(double A, double maxGenD, double w, double G) {
+        return getTail(A, maxGenD, w, G) * ((1 + 2 * maxGenD * w) / (A + maxGenD + 2 * A * maxGenD * w)
+                + maxGenD / (A * A) - 4 * w / (1 + 2 * A * w));
+    }
+
+    /**
+     * @return the parameters
+     */
+    public Parameter[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * A quantity for each population pair, with its derivatives with respect to a set of parameters
+     */
+    public static class QuantityGradient {
+
+        // the quantity
+        private final Matrix value;
+        // derivative of the quantity with respect to each parameter
+        private final Matrix[] derivatives;
+        // the parameters
+        private final Parameter[] parameters;
+
+        /**
+         * Constructor, from packed matrices
+         * @param value packed quantity
+         * @param derivatives packed derivatives, one per parameter
+         * @param N number of populations
+         * @param parameters the parameters
+         */
+        QuantityGradient(double[] value, double[][] derivatives, int N, Parameter[] parameters) {
+            this.value = Matrix.fromPacked(value, N);
+            this.derivatives = new Matrix[derivatives.length];
+            for (int p = 0; p < derivatives.length; p++) {
+                this.derivatives[p] = Matrix.fromPacked(derivatives[p], N);
+            }
+            this.parameters = parameters;
+        }
+
+        /**
+         * @return the value
+         */
+        public Matrix getValue() {
+            return value;
+        }
+
+        /**
+         * @return the derivatives
+         */
+        public Matrix[] getDerivatives() {
+            return derivatives;
+        }
+
+        /**
+         * @return the parameters
+         */
+        public Parameter[] getParameters() {
+            return parameters;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package demographicLanguageParser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+/**
+ * Describes the time frames of a model, streaming to a writer as text, JSON or DOT (Graphviz).
+ * Frames are visited once, and matrices are written row by row without building strings, so the
+ * time is linear in the size of the model. The text format is the description written by earlier versions;
+ * transitions other than instantaneous ones are only written in the JSON and DOT formats.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+class Narrator {
+
+    // where the description is written
+    private final Writer out;
+    // the format
+    private final DemographicLanguageParser.NarrateFormat format;
+
+    Narrator(Writer out, DemographicLanguageParser.NarrateFormat format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * writes the description of all frames
+     * @param frames the frames, as built by DemographicLanguageParser.buildMigrationMatrices
+     */
+    void narrate(ArrayList<TimeFrame> frames) throws IOException {
+        if (format == DemographicLanguageParser.NarrateFormat.json) {
+            out.write("{\"frames\": [");
+        } else if (format == DemographicLanguageParser.NarrateFormat.dot) {
+            out.write("digraph model {\n\trankdir=TB;\n");
+        } else {
+            out.write("Once upon a time ...\n");
+        }
+        for (int f = 0; f < frames.size(); f++) {
+            if (format == DemographicLanguageParser.NarrateFormat.json) {
+                writeJson(f, frames.get(f));
+            } else if (format == DemographicLanguageParser.NarrateFormat.dot) {
+                writeDot(f, frames.get(f));
+            } else {
+                writeText((f == 0) ? null : frames.get(f - 1), frames.get(f));
+            }
+        }
+        if (format == DemographicLanguageParser.NarrateFormat.json) {
+            out.write("\n]}\n");
+        } else if (format == DemographicLanguageParser.NarrateFormat.dot) {
+            out.write("}\n");
+        }
+        out.flush();
+    }
+
+    // the text of a frame, as it was written before frames were built: populations that stopped and started
+    // at the start of the frame, instantaneous transitions, and the migration matrix
+    private void writeText(TimeFrame previous, TimeFrame frame) throws IOException {
+        MigrationMatrix migration = frame.migration;
+        out.write("From generation ");
+        out.write(frame.Gstart.toString());
+        out.write(" to generation ");
+        out.write(frame.Gend.toString());
+        out.write('\n');
+        if (previous != null) {
+            for (Edge e : previous.migration.populationsFrom) {
+                if (frame.Gstart.compareTo(e.getN2().getGen()) != -1) {
+                    out.write(e.toString());
+                    out.write(" stopped being active.\n");
+                }
+            }
+        }
+        out.write("Some populations appeared:\n");
+        // sorted as active populations, so that the order does not depend on hashing of nodes
+        TreeSet<Edge> newEdges = new TreeSet<Edge>();
+        for (Node n : frame.Gstart.getNodes()) {
+            newEdges.addAll(n.getOutEdges());
+        }
+        TreeSet<Edge> instantaneousEdges = new TreeSet<Edge>();
+        for (Edge e : newEdges) {
+            out.write('\t');
+            out.write(e.toString());
+            out.write('\n');
+            if (e.getN1().getGen().getValue() == e.getN2().getGen().getValue()) {
+                instantaneousEdges.add(e);
+            }
+        }
+        for (Edge e : instantaneousEdges) {
+            out.write("Instantaneous transition at ");
+            out.write(frame.Gstart.getId());
+            out.write(' ');
+            out.write(e.getId());
+            out.write(" ->\n");
+            double sum = e.getN2().getSumOfOutGoing();
+            for (Edge eo : e.getN2().getOutEdges()) {
+                out.write(eo.getId());
+                out.write(" prob. ");
+                out.write(Double.toString(eo.getS1().getValue() / sum));
+                out.write('\n');
+            }
+        }
+        if (migration.numPopIn == 1) {
+            out.write("No migration: only one population\n");
+            return;
+        }
+        out.write("Some populations were active, but not instantaneous: ");
+        for (int i = 0; i < migration.populationsFrom.length; i++) {
+            if (i > 0) {
+                out.write('-');
+            }
+            out.write(migration.populationsFrom[i].getId());
+        }
+        out.write('\n');
+        if (!hasMigration(migration)) {
+            out.write("With no migration\n");
+        } else {
+            out.write("These had a migration matrix:\n");
+            migration.appendTo(out);
+            out.write('\n');
+        }
+    }
+
+    private void writeJson(int index, TimeFrame frame) throws IOException {
+        MigrationMatrix migration = frame.migration;
+        out.write((index == 0) ? "\n" : ",\n");
+        out.write("{\"start\": ");
+        writeJsonNumber(frame.Gstart.getValue());
+        out.write(", \"end\": ");
+        writeJsonNumber(frame.Gend.getValue());
+        out.write(", \"populations\": [");
+        writeIds(migration.populationsFrom, true);
+        out.write("], \"migration\": [");
+        Double[][] mat = migration.getMigMatrix().getMat();
+        boolean first = true;
+        for (int i = 0; i < migration.numPopIn; i++) {
+            for (int j = 0; j < migration.numPopOut; j++) {
+                if (i != j && mat[i][j] > 0.0) {
+                    writeJsonEntry(first, migration.populationsFrom[i], migration.populationsTo[j], "rate", mat[i][j]);
+                    first = false;
+                }
+            }
+        }
+        out.write("], \"transitions\": [");
+        if (frame.transitions != null) {
+            for (int t = 0; t < frame.transitions.size(); t++) {
+                MigrationMatrix transition = frame.transitions.get(t);
+                out.write((t == 0) ? "[" : ", [");
+                mat = transition.getMigMatrix().getMat();
+                first = true;
+                for (int i = 0; i < transition.numPopIn; i++) {
+                    for (int j = 0; j < transition.numPopOut; j++) {
+                        if (mat[i][j] > 0.0) {
+                            writeJsonEntry(first, transition.populationsFrom[i], transition.populationsTo[j], "probability", mat[i][j]);
+                            first = false;
+                        }
+                    }
+                }
+                out.write("]");
+            }
+        }
+        out.write("]}");
+    }
+
+    private void writeDot(int index, TimeFrame frame) throws IOException {
+        MigrationMatrix migration = frame.migration;
+        // populations may be active in several frames, declaring them again is allowed
+        for (Edge e : migration.populationsFrom) {
+            out.write('\t');
+            writeQuoted(e.getId());
+            out.write(" [label=\"");
+            out.write(e.getId());
+            out.write("\\n");
+            out.write(Double.toString(e.getN1().getGen().getValue()));
+            out.write(" - ");
+            out.write(Double.toString(e.getN2().getGen().getValue()));
+            out.write("\"];\n");
+        }
+        Double[][] mat = migration.getMigMatrix().getMat();
+        for (int i = 0; i < migration.numPopIn; i++) {
+            for (int j = 0; j < migration.numPopOut; j++) {
+                if (i != j && mat[i][j] > 0.0) {
+                    writeDotEdge(migration.populationsFrom[i], migration.populationsTo[j], mat[i][j], "dashed", index);
+                }
+            }
+        }
+        if (frame.transitions != null) {
+            for (MigrationMatrix transition : frame.transitions) {
+                mat = transition.getMigMatrix().getMat();
+                for (int i = 0; i < transition.numPopIn; i++) {
+                    for (int j = 0; j < transition.numPopOut; j++) {
+                        // populations that continue in the next frame are not drawn
+                        if (mat[i][j] > 0.0 && transition.populationsFrom[i] != transition.populationsTo[j]) {
+                            writeDotEdge(transition.populationsFrom[i], transition.populationsTo[j], mat[i][j], "solid", index);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // true if some population migrates
+    private static boolean hasMigration(MigrationMatrix migration) {
+        Double[][] mat = migration.getMigMatrix().getMat();
+        for (int i = 0; i < migration.numPopIn; i++) {
+            if (mat[i][i] < 1 - Parameter.getEpsilon()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIds(Edge[] populations, boolean quoted) throws IOException {
+        for (int i = 0; i < populations.length; i++) {
+            if (i > 0) {
+                out.write(", ");
+            }
+            if (quoted) {
+                writeQuoted(populations[i].getId());
+            } else {
+                out.write(populations[i].getId());
+            }
+        }
+    }
+
+    private void writeJsonEntry(boolean first, Edge from, Edge to, String name, double value) throws IOException {
+        out.write(first ? "{\"from\": " : ", {\"from\": ");
+        writeQuoted(from.getId());
+        out.write(", \"to\": ");
+        writeQuoted(to.getId());
+        out.write(", \"");
+        out.write(name);
+        out.write("\": ");
+        writeJsonNumber(value);
+        out.write('}');
+    }
+
+    private void writeDotEdge(Edge from, Edge to, double value, String style, int frame) throws IOException {
+        out.write('\t');
+        writeQuoted(from.getId());
+        out.write(" -> ");
+        writeQuoted(to.getId());
+        out.write(" [label=\"");
+        out.write(Double.toString(value));
+        out.write("\", style=");
+        out.write(style);
+        out.write(", comment=\"frame ");
+        out.write(Integer.toString(frame));
+        out.write("\"];\n");
+    }
+
+    // JSON has no infinity, which is written as null
+    private void writeJsonNumber(double value) throws IOException {
+        out.write((Double.isInfinite(value) || Double.isNaN(value)) ? "null" : Double.toString(value));
+    }
+
+    private void writeQuoted(String s) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+}
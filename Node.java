@@ -1,5 +1,6 @@
 package demographicLanguageParser;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeSet;
 
@@ -65,6 +66,7 @@ public class Node implements Comparable<Node> {
      */
     public void addSize(Size s) {
         getSizes().add(s);
+        s.addNode(this);
     }
 
     /**
@@ -123,6 +125,57 @@ public class Node implements Comparable<Node> {
         return out;
     }
 
+    /**
+     * checks if incoming and outgoing sizes are the same, within numerical precision
+     * @return true if sum of incoming sizes is the same as sum of outgoing sizes
+     */
+    public boolean isConserved() {
+        return Math.abs(getSumOfIncoming() - getSumOfOutGoing()) <= Parameter.getEpsilon();
+    }
+
+    /**
+     * Restores conservation by changing the pivots of the node, in proportion to their values. Constant
+     * pivots are not changed.
+     * @param exclude a size that must not be changed (e.g. the one that caused the imbalance), may be null
+     * @param changed parameters that were changed, with their value before the first change. Updated by this method
+     * @return true if the free pivots could balance the node
+     */
+    public boolean rebalancePivots(Size exclude, HashMap<Parameter, Double> changed) {
+        double imbalance = getSumOfIncoming() - getSumOfOutGoing();
+        // each pivot changes the imbalance by its (incoming - outgoing) multiplicity times its change
+        HashMap<Size, Integer> multiplicity = new HashMap<Size, Integer>();
+        double weight = 0.0;
+        for (Size p : getPivot()) {
+            if (p == exclude || p.isConstant) {
+                continue;
+            }
+            int m = 0;
+            for (Edge e : getInEdges()) {
+                if (e.getS2() == p) {
+                    m++;
+                }
+            }
+            for (Edge e : getOutEdges()) {
+                if (e.getS1() == p) {
+                    m--;
+                }
+            }
+            multiplicity.put(p, m);
+            weight += m * p.getValue();
+        }
+        if (Math.abs(weight) < Parameter.getEpsilon()) {
+            return false;
+        }
+        double relativeChange = -imbalance / weight;
+        for (Size p : multiplicity.keySet()) {
+            if (multiplicity.get(p) != 0) {
+                p.recordChange(changed);
+                p.setValue(p.getValue() * (1 + relativeChange));
+            }
+        }
+        return true;
+    }
+
     /**
      * checks if an outgoing edge is instantaneous
      * @return true if one outgoing edge is instantaneous
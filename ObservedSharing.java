@@ -0,0 +1,164 @@
+package demographicLanguageParser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Observed IBD sharing, as counts of segments in length bins for pairs of populations at generation 0.
+ * Each line of the input file has the form
+ * pop1 pop2 numPairs fromLength toLength count
+ * where pop1 and pop2 are names of edges at generation 0, numPairs is the number of haplotype pairs
+ * that were compared, fromLength and toLength are the bin boundaries (Morgans) and count is the
+ * number of segments observed in the bin. Lines starting with "#" are ignored.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class ObservedSharing {
+
+    // names of the populations that appear in the observations
+    private String[] popNames;
+    // population indexes (in popNames) of each observation
+    private int[] pop1, pop2;
+    // number of haplotype pairs compared for each observation
+    private double[] numPairs;
+    // observed number of segments
+    private double[] counts;
+    // index of the length bin of each observation
+    private int[] bin;
+    // boundaries of each distinct length bin
+    private double[] binFrom, binTo;
+
+    /**
+     * Loads observed sharing from file
+     * @param filename name of the file containing the histograms
+     * @throws Exception
+     */
+    public ObservedSharing(String filename) throws Exception {
+        // distinct populations, indexed by name
+        HashMap<String, Integer> popIndex = new HashMap<String, Integer>();
+        ArrayList<String> pops = new ArrayList<String>();
+        // distinct bins, indexed by their boundaries
+        HashMap<String, Integer> binIndex = new HashMap<String, Integer>();
+        ArrayList<double[]> bins = new ArrayList<double[]>();
+        ArrayList<double[]> observations = new ArrayList<double[]>();
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        String str;
+        int lineNumber = 0;
+        while ((str = in.readLine()) != null) {
+            lineNumber++;
+            str = str.trim();
+            if (str.length() == 0 || str.startsWith("#")) {
+                continue;
+            }
+            String[] fields = str.split("\\s+");
+            if (fields.length != 6) {
+                in.close();
+                throw new Exception("Line " + lineNumber + " of " + filename + " has " + fields.length
+                        + " fields. Expecting 6 (pop1, pop2, numPairs, fromLength, toLength, count).");
+            }
+            for (int f = 0; f < 2; f++) {
+                if (!popIndex.containsKey(fields[f])) {
+                    popIndex.put(fields[f], pops.size());
+                    pops.add(fields[f]);
+                }
+            }
+            int p1 = popIndex.get(fields[0]);
+            int p2 = popIndex.get(fields[1]);
+            double from = Double.parseDouble(fields[3]);
+            double to = Double.parseDouble(fields[4]);
+            String key = from + "_" + to;
+            if (!binIndex.containsKey(key)) {
+                binIndex.put(key, bins.size());
+                bins.add(new double[]{from, to});
+            }
+            observations.add(new double[]{p1, p2, Double.parseDouble(fields[2]), binIndex.get(key), Double.parseDouble(fields[5])});
+        }
+        in.close();
+        popNames = pops.toArray(new String[pops.size()]);
+        int numObs = observations.size();
+        pop1 = new int[numObs];
+        pop2 = new int[numObs];
+        numPairs = new double[numObs];
+        bin = new int[numObs];
+        counts = new double[numObs];
+        for (int o = 0; o < numObs; o++) {
+            double[] obs = observations.get(o);
+            pop1[o] = (int) obs[0];
+            pop2[o] = (int) obs[1];
+            numPairs[o] = obs[2];
+            bin[o] = (int) obs[3];
+            counts[o] = obs[4];
+        }
+        binFrom = new double[bins.size()];
+        binTo = new double[bins.size()];
+        for (int b = 0; b < bins.size(); b++) {
+            binFrom[b] = bins.get(b)[0];
+            binTo[b] = bins.get(b)[1];
+        }
+    }
+
+    /**
+     * Builds the requests needed to compute the expected counts, one per distinct length bin
+     * @param genomeSize size of the genome (Morgans)
+     * @return array of requests, in the order of bin indexes
+     */
+    public DemographicLanguageParser.QuantityRequest[] getRequests(double genomeSize) {
+        DemographicLanguageParser.QuantityRequest[] requests = new DemographicLanguageParser.QuantityRequest[binFrom.length];
+        for (int b = 0; b < binFrom.length; b++) {
+            requests[b] = new DemographicLanguageParser.QuantityRequest(DemographicLanguageParser.QuantityType.expectedNumberOfSegments,
+                    new double[]{binFrom[b], binTo[b], genomeSize});
+        }
+        return requests;
+    }
+
+    /**
+     * Poisson composite log-likelihood of the observations given expected segments per haplotype pair.
+     * The constant term log(count!) is omitted.
+     * @param expected one matrix per length bin, as returned for the requests of getRequests
+     * @param popsAt0 populations at generation 0, in the order used by the expected matrices
+     * @return the log-likelihood
+     */
+    public double logLikelihood(Matrix[] expected, Edge[] popsAt0) throws Exception {
+        // the order of populations at generation 0 depends on parameter values, map it every time
+        int[] position = new int[popNames.length];
+        for (int i = 0; i < popNames.length; i++) {
+            position[i] = -1;
+            for (int j = 0; j < popsAt0.length; j++) {
+                if (popsAt0[j].getId().equals(popNames[i])) {
+                    position[i] = j;
+                    break;
+                }
+            }
+            if (position[i] == -1) {
+                throw new Exception(popNames[i] + " is not a population at generation 0.");
+            }
+        }
+        double logLik = 0.0;
+        for (int o = 0; o < counts.length; o++) {
+            double lambda = numPairs[o] * expected[bin[o]].get(position[pop1[o]], position[pop2[o]]);
+            if (lambda <= 0.0) {
+                if (counts[o] > 0.0) {
+                    return Double.NEGATIVE_INFINITY;
+                }
+                continue;
+            }
+            logLik += counts[o] * Math.log(lambda) - lambda;
+        }
+        return logLik;
+    }
+
+    /**
+     * @return the number of observations
+     */
+    public int getNumObservations() {
+        return counts.length;
+    }
+
+    /**
+     * @return the number of distinct length bins
+     */
+    public int getNumBins() {
+        return binFrom.length;
+    }
+}
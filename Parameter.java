@@ -1,5 +1,8 @@
 package demographicLanguageParser;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Abstract class for a generic parameter.
  * @author Pier Palamara <pier@cs.columbia.edu>
@@ -90,7 +93,35 @@ public abstract class Parameter implements Comparable<Parameter> {
      * Try to update a parameter
      * @return 0 if parameter updated, 1 if range violated, 2 if conservation violated, 3 if migration violated
      */
-    public abstract int tryUpdate(double increment);
+    public int tryUpdate(double increment) {
+        return tryUpdate(increment, new HashMap<Parameter, Double>());
+    }
+
+    /**
+     * Try to update a parameter, recording all parameters changed by the update (the parameter, and the
+     * pivots changed to keep nodes conserved), so that the update can be reverted with restore
+     * @param increment the change
+     * @param changed parameters changed, with their value before the first change. Updated if the update succeeds
+     * @return 0 if parameter updated, 1 if range violated, 2 if conservation violated, 3 if migration violated
+     */
+    public abstract int tryUpdate(double increment, HashMap<Parameter, Double> changed);
+
+    /**
+     * Restores the values of parameters changed by updates
+     * @param changed parameters changed, with their previous value (see tryUpdate)
+     */
+    public static void restore(HashMap<Parameter, Double> changed) {
+        for (Map.Entry<Parameter, Double> e : changed.entrySet()) {
+            e.getKey().setValue(e.getValue());
+        }
+    }
+
+    // records the current value of a parameter, unless it was already changed
+    void recordChange(HashMap<Parameter, Double> changed) {
+        if (!changed.containsKey(this)) {
+            changed.put(this, getValue());
+        }
+    }
 
     /**
      * @param value the value to set
@@ -0,0 +1,76 @@
+package demographicLanguageParser;
+
+import java.io.PrintStream;
+
+/**
+ * Prints trace events as text. Used by models when debug is on and no other listener is attached.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class PrintTraceListener implements TraceListener {
+
+    // where events are printed
+    private PrintStream out;
+
+    public PrintTraceListener() {
+        this(System.out);
+    }
+
+    /**
+     * @param out where events are printed
+     */
+    public PrintTraceListener(PrintStream out) {
+        this.out = out;
+    }
+
+    public void transitionBuilt(int generation, MigrationMatrix transition, boolean instantaneous) {
+        out.println((instantaneous ? "Instantaneous" : "Standard") + " transition at " + generation);
+        out.println("Transition " + transition.toString());
+    }
+
+    public void frameBuilt(int index, TimeFrame frame) {
+        out.println("- From generation " + frame.Gstart.toString() + " to generation " + frame.Gend.toString());
+        out.println("Matrix was created:\n" + frame.migration.toString());
+    }
+
+    public void frameStart(int index, TimeFrame frame) {
+        out.println("Start of " + frame.intStart + " " + frame.intEnd);
+    }
+
+    public void generationSizes(int generation, Edge[] populations, Double[] sizes) {
+        for (int i = 0; i < populations.length; i++) {
+            out.println("gen " + generation + " pop " + populations[i].getId() + " size " + sizes[i]);
+        }
+    }
+
+    public void transitionApplied(int generation, MigrationMatrix transition) {
+        out.println("Transition applied at " + generation);
+    }
+
+    public void generationCoalescence(int generation, double[] newCoal) {
+        out.println("gen: " + generation);
+        printPacked(newCoal);
+    }
+
+    public void frameEnd(int index, int generation, Matrix state, double[] probCoal) {
+        printMat(state.getMat());
+        out.println("gen: " + generation);
+        printPacked(probCoal);
+    }
+
+    // prints a packed symmetric matrix
+    private void printPacked(double[] packed) {
+        int n = (int) Math.round((Math.sqrt(8.0 * packed.length + 1.0) - 1.0) / 2.0);
+        printMat(Matrix.fromPacked(packed, n).getMat());
+    }
+
+    private void printMat(Double[][] mat) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < mat.length; k++) {
+            for (int j = 0; j < mat[k].length; j++) {
+                sb.append(mat[k][j]).append('\t');
+            }
+            sb.append('\n');
+        }
+        out.print(sb);
+    }
+}
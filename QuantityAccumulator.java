@@ -0,0 +1,297 @@
+package demographicLanguageParser;
+
+import java.util.Arrays;
+
+/**
+ * State of the computation of model quantities at a generation: the state of lineages, the probabilities of
+ * having coalesced and the quantities accumulated so far. Generations are accumulated with the accumulation
+ * mode and truncation tolerance of the model (see DemographicLanguageParser.computeModelQuantities). The state
+ * can be copied, so that a computation can be resumed from the start of a frame (see IncrementalEvaluator).
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+final class QuantityAccumulator {
+
+    // requests computed
+    private final DemographicLanguageParser.QuantityRequest[] requests;
+    // how probabilities and quantities are accumulated
+    private final DemographicLanguageParser.AccumulationMode mode;
+    // computation stops when all pairs have coalesced with probability 1 - truncationTolerance, 0 to never stop
+    private final double truncationTolerance;
+    // probability of being in each population, for lineages starting in each population at generation 0
+    private Matrix state;
+    // packed probabilities of having coalesced, and of not having coalesced
+    private double[] probCoal, probNotCoal;
+    // running compensation of probCoal (compensated mode), and log of probNotCoal (logSurvival mode)
+    private double[] probCoalComp, logNotCoal;
+    // packed quantities accumulated so far, and their running compensations (not in plain mode)
+    private double[][] res, resComp;
+    // requests completed in closed form
+    private boolean[] done;
+    private int numDone = 0;
+    // last generation accumulated
+    private int g = 0;
+    // true if the computation was stopped early, with a bound on the error of each request
+    private boolean truncated = false;
+    private double[] truncationErrors;
+    // probability of coalescing at current generation for each pair, reused across generations
+    private double[] newCoal;
+
+    /**
+     * The state at generation 0
+     * @param requests the requests
+     * @param numStartPops number of populations at generation 0
+     * @param mode how probabilities and quantities are accumulated
+     * @param truncationTolerance truncation tolerance, 0 to compute all generations
+     */
+    QuantityAccumulator(DemographicLanguageParser.QuantityRequest[] requests, int numStartPops,
+            DemographicLanguageParser.AccumulationMode mode, double truncationTolerance) {
+        this.requests = requests;
+        this.mode = mode;
+        this.truncationTolerance = truncationTolerance;
+        int numPairs = Matrix.getPackedSize(numStartPops);
+        state = new Matrix(numStartPops);
+        probCoal = new double[numPairs];
+        probNotCoal = new double[numPairs];
+        Arrays.fill(probNotCoal, 1.0);
+        res = new double[requests.length][numPairs];
+        if (mode != DemographicLanguageParser.AccumulationMode.plain) {
+            probCoalComp = new double[numPairs];
+            logNotCoal = new double[numPairs];
+            resComp = new double[requests.length][numPairs];
+        }
+        done = new boolean[requests.length];
+        truncationErrors = new double[requests.length];
+        newCoal = new double[numPairs];
+    }
+
+    private QuantityAccumulator(QuantityAccumulator other) {
+        this.requests = other.requests;
+        this.mode = other.mode;
+        this.truncationTolerance = other.truncationTolerance;
+        Double[][] mat = new Double[other.state.getNumRows()][];
+        for (int i = 0; i < mat.length; i++) {
+            mat[i] = other.state.getMat()[i].clone();
+        }
+        state = new Matrix(mat);
+        probCoal = other.probCoal.clone();
+        probNotCoal = other.probNotCoal.clone();
+        probCoalComp = (other.probCoalComp == null) ? null : other.probCoalComp.clone();
+        logNotCoal = (other.logNotCoal == null) ? null : other.logNotCoal.clone();
+        res = copy(other.res);
+        resComp = copy(other.resComp);
+        done = other.done.clone();
+        numDone = other.numDone;
+        g = other.g;
+        truncated = other.truncated;
+        truncationErrors = other.truncationErrors.clone();
+        newCoal = new double[probCoal.length];
+    }
+
+    /**
+     * @return a copy of this state, which can be resumed independently
+     */
+    QuantityAccumulator copy() {
+        return new QuantityAccumulator(this);
+    }
+
+    /**
+     * @return true if all requests are completed, or the computation was truncated
+     */
+    boolean isFinished() {
+        return numDone == requests.length || truncated;
+    }
+
+    /**
+     * Completes requests of expected number of segments in closed form, when the frame starting at the current
+     * generation is the last one and has a single population of constant size
+     * @param size size of the population
+     * @param start first generation of the frame
+     * @return true if some requests are not completed and need to be computed generation by generation
+     */
+    boolean addSegmentsTail(double size, int start) {
+        boolean iterative = false;
+        for (int q = 0; q < requests.length; q++) {
+            if (done[q]) {
+                continue;
+            }
+            if (requests[q].getType() == DemographicLanguageParser.QuantityType.expectedNumberOfSegments) {
+                double val = DemographicLanguageParser.getSegmentsTail(size, start, requests[q].getArgs());
+                for (int p = 0; p < res[q].length; p++) {
+                    res[q][p] += val;
+                }
+                done[q] = true;
+                numDone++;
+            } else {
+                iterative = true;
+            }
+        }
+        return iterative;
+    }
+
+    /**
+     * Accumulates consecutive generations, following the last one accumulated
+     * @param coal probability of coalescence of each pair at each generation, for lineages that have not coalesced
+     * @param trace listener sent the probability of coalescing at each generation, may be null
+     */
+    void add(double[][] coal, TraceListener trace) {
+        int numQueries = requests.length;
+        int numPairs = probCoal.length;
+        // factors for all generations, computed in batch for each request
+        double[][] factors = new double[numQueries][];
+        for (int q = 0; q < numQueries; q++) {
+            if (!done[q]) {
+                factors[q] = new double[coal.length];
+                DemographicLanguageParser.fillQuantityFactors(requests[q].getType(), requests[q].getArgs(), g + 1, factors[q]);
+            }
+        }
+        // inner loops of the plain recurrence, vectorized if available
+        ArrayKernels kernels = ArrayKernels.get();
+        for (int j = 0; j < coal.length; j++) {
+            g++;
+            double[] coalPairs = coal[j];
+            if (mode == DemographicLanguageParser.AccumulationMode.plain) {
+                kernels.updateCoalescence(coalPairs, probCoal, probNotCoal, newCoal, numPairs);
+                if (trace != null) {
+                    trace.generationCoalescence(g, newCoal);
+                }
+                for (int q = 0; q < numQueries; q++) {
+                    if (!done[q]) {
+                        kernels.axpy(factors[q][j], newCoal, res[q], 0, numPairs);
+                    }
+                }
+                continue;
+            }
+            if (mode == DemographicLanguageParser.AccumulationMode.compensated) {
+                for (int p = 0; p < numPairs; p++) {
+                    newCoal[p] = coalPairs[p] * probNotCoal[p];
+                    probCoal[p] = DemographicLanguageParser.addCompensated(probCoal[p], newCoal[p], probCoalComp, p);
+                    probNotCoal[p] = (1.0 - probCoal[p]) - probCoalComp[p];
+                }
+            } else {
+                for (int p = 0; p < numPairs; p++) {
+                    newCoal[p] = coalPairs[p] * probNotCoal[p];
+                    logNotCoal[p] += Math.log1p(-coalPairs[p]);
+                    probNotCoal[p] = Math.exp(logNotCoal[p]);
+                    probCoal[p] = 1.0 - probNotCoal[p];
+                }
+            }
+            if (trace != null) {
+                trace.generationCoalescence(g, newCoal);
+            }
+            for (int q = 0; q < numQueries; q++) {
+                if (!done[q]) {
+                    double factor = factors[q][j];
+                    double[] resPairs = res[q];
+                    double[] compPairs = resComp[q];
+                    for (int p = 0; p < numPairs; p++) {
+                        resPairs[p] = DemographicLanguageParser.addCompensated(resPairs[p], newCoal[p] * factor, compPairs, p);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param length number of generations of a frame
+     * @return number of generations computed before checking for truncation, the whole frame without truncation
+     */
+    int getChunk(int length) {
+        return (truncationTolerance > 0.0) ? DemographicLanguageParser.TRUNCATION_CHUNK : length;
+    }
+
+    /**
+     * Stops the computation if all pairs have coalesced with probability 1 - truncationTolerance, bounding
+     * the error of each request
+     * @param hasMore true if there are generations left to compute
+     */
+    void checkTruncation(boolean hasMore) {
+        if (truncationTolerance <= 0.0 || !hasMore) {
+            return;
+        }
+        double maxNotCoal = 0.0;
+        for (int p = 0; p < probNotCoal.length; p++) {
+            maxNotCoal = Math.max(maxNotCoal, probNotCoal[p]);
+        }
+        if (maxNotCoal <= truncationTolerance) {
+            // remaining generations can add at most the remaining mass times the largest factor
+            for (int q = 0; q < requests.length; q++) {
+                if (!done[q]) {
+                    truncationErrors[q] = maxNotCoal * DemographicLanguageParser.getMaxQuantityFactor(requests[q].getType(), requests[q].getArgs());
+                }
+            }
+            truncated = true;
+        }
+    }
+
+    /**
+     * @return one symmetric matrix per request, with the quantities accumulated so far
+     */
+    Matrix[] getResults() {
+        int numStartPops = state.getNumRows();
+        Matrix[] results = new Matrix[requests.length];
+        for (int q = 0; q < requests.length; q++) {
+            double[] packed = res[q].clone();
+            if (resComp != null) {
+                for (int p = 0; p < packed.length; p++) {
+                    packed[p] += resComp[q][p];
+                }
+            }
+            results[q] = Matrix.fromPacked(packed, numStartPops);
+        }
+        return results;
+    }
+
+    /**
+     * @return the state of lineages, updated by TimeFrame.computePackedCoalescenceVector
+     */
+    Matrix getState() {
+        return state;
+    }
+
+    /**
+     * @return the packed probabilities of having coalesced
+     */
+    double[] getProbCoal() {
+        return probCoal;
+    }
+
+    /**
+     * @return the last generation accumulated
+     */
+    int getGeneration() {
+        return g;
+    }
+
+    /**
+     * @return bound on the error of each request caused by truncation, 0 if not truncated
+     */
+    double[] getTruncationErrors() {
+        return truncationErrors;
+    }
+
+    /**
+     * @return the accumulation mode
+     */
+    DemographicLanguageParser.AccumulationMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the truncation tolerance
+     */
+    double getTruncationTolerance() {
+        return truncationTolerance;
+    }
+
+    // deep copy of a table, null if null
+    private static double[][] copy(double[][] table) {
+        if (table == null) {
+            return null;
+        }
+        double[][] c = new double[table.length][];
+        for (int i = 0; i < table.length; i++) {
+            c[i] = table[i].clone();
+        }
+        return c;
+    }
+}
@@ -0,0 +1,197 @@
+package demographicLanguageParser;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes results of quantity requests to a binary columnar file, through a direct buffer and without
+ * formatting values as text. Results are written in batches, each holding the results of several
+ * requests for one model. All numbers are little endian. The file is:
+ *
+ * header: the 8 bytes "DLPQRES1", int number of populations, then for each population
+ *         int length and UTF-8 bytes of its name (populations at generation 0, in the order of results)
+ * batch:  int number of requests R (at least 1), int length and UTF-8 bytes of the model id,
+ *         int number of population pairs P, then the columns
+ *         type:  R bytes, ordinal of the QuantityType
+ *         arg0, arg1, arg2: R doubles each, NaN for arguments not used by the type
+ *         pop1, pop2: P shorts each, indices of the two populations of each pair (pop1 <= pop2)
+ *         value: R * P doubles, the P values of the first request, then of the second, ...
+ * end:    int 0
+ *
+ * A row (model, type, arguments, pair, value) is the value at position r * P + p with request r and pair p.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class QuantityResultWriter {
+
+    // identifies the format and its version
+    static final byte[] MAGIC = "DLPQRES1".getBytes(StandardCharsets.US_ASCII);
+    // largest number of arguments of a quantity type
+    static final int MAX_ARGS = 3;
+    // size of the output buffer
+    static final int BUFFER_SIZE = 1 << 20;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // number of populations of each result
+    private int numPops;
+    // populations of each pair, in the order of values
+    private short[] pop1, pop2;
+    // number of values written
+    private long numValues = 0;
+
+    /**
+     * Creates the file and writes the header
+     * @param filename the file, replaced if it exists
+     * @param popNames names of the populations at generation 0, in the order of results
+     */
+    public QuantityResultWriter(String filename, String[] popNames) throws Exception {
+        if (popNames.length > Short.MAX_VALUE) {
+            throw new Exception("Too many populations at generation 0.");
+        }
+        file = new RandomAccessFile(filename, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        numPops = popNames.length;
+        int numPairs = Matrix.getPackedSize(numPops);
+        pop1 = new short[numPairs];
+        pop2 = new short[numPairs];
+        for (int i = 0; i < numPops; i++) {
+            for (int j = i; j < numPops; j++) {
+                pop1[Matrix.packedIndex(i, j, numPops)] = (short) i;
+                pop2[Matrix.packedIndex(i, j, numPops)] = (short) j;
+            }
+        }
+        buffer.put(MAGIC);
+        buffer.putInt(numPops);
+        for (String name : popNames) {
+            putString(name);
+        }
+    }
+
+    /**
+     * Writes the results of some requests
+     * @param modelId identifies the model (e.g. a file name or a point of a parameter grid)
+     * @param requests the requests
+     * @param results one matrix per request, as returned by computeModelQuantities
+     */
+    public void writeBatch(String modelId, DemographicLanguageParser.QuantityRequest[] requests, Matrix[] results) throws Exception {
+        if (results.length != requests.length) {
+            throw new Exception("Got " + results.length + " results for " + requests.length + " requests.");
+        }
+        double[][] packed = new double[results.length][];
+        for (int q = 0; q < results.length; q++) {
+            if (results[q].getNumRows() != numPops) {
+                throw new Exception("Result has " + results[q].getNumRows() + " populations, expecting " + numPops + ".");
+            }
+            packed[q] = results[q].getPacked();
+        }
+        writeBatch(modelId, requests, packed);
+    }
+
+    /**
+     * Writes the results of some requests, given as packed upper triangles (see Matrix.packedIndex)
+     * @param modelId identifies the model
+     * @param requests the requests
+     * @param results one packed array per request
+     */
+    public void writeBatch(String modelId, DemographicLanguageParser.QuantityRequest[] requests, double[][] results) throws Exception {
+        if (results.length != requests.length) {
+            throw new Exception("Got " + results.length + " results for " + requests.length + " requests.");
+        }
+        putBatchHeader(modelId, requests);
+        for (double[] result : results) {
+            if (result.length != pop1.length) {
+                throw new Exception("Result has " + result.length + " pairs, expecting " + pop1.length + ".");
+            }
+            int p = 0;
+            while (p < result.length) {
+                ensure(8);
+                int n = Math.min(result.length - p, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(result, p, n);
+                buffer.position(buffer.position() + 8 * n);
+                p += n;
+            }
+        }
+        numValues += (long) requests.length * pop1.length;
+    }
+
+    // writes everything but the values of a batch
+    private void putBatchHeader(String modelId, DemographicLanguageParser.QuantityRequest[] requests) throws Exception {
+        if (requests.length == 0) {
+            throw new Exception("A batch must have at least one request.");
+        }
+        ensure(4);
+        buffer.putInt(requests.length);
+        putString(modelId);
+        ensure(4);
+        buffer.putInt(pop1.length);
+        for (DemographicLanguageParser.QuantityRequest request : requests) {
+            ensure(1);
+            buffer.put((byte) request.getType().ordinal());
+        }
+        for (int a = 0; a < MAX_ARGS; a++) {
+            for (DemographicLanguageParser.QuantityRequest request : requests) {
+                ensure(8);
+                double[] args = request.getArgs();
+                buffer.putDouble((a < args.length) ? args[a] : Double.NaN);
+            }
+        }
+        for (short[] pops : new short[][]{pop1, pop2}) {
+            for (short pop : pops) {
+                ensure(2);
+                buffer.putShort(pop);
+            }
+        }
+    }
+
+    private void putString(String s) throws Exception {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (4 + bytes.length > BUFFER_SIZE) {
+            throw new Exception("String too long: " + s.substring(0, 20) + "...");
+        }
+        ensure(4 + bytes.length);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    // flushes the buffer if it has less than some free bytes
+    private void ensure(int bytes) throws Exception {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes buffered data to the file
+     */
+    public void flush() throws Exception {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes the end of the file and closes it
+     */
+    public void close() throws Exception {
+        try {
+            ensure(4);
+            buffer.putInt(0);
+            flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return the number of values written
+     */
+    public long getNumValues() {
+        return numValues;
+    }
+}
@@ -1,6 +1,7 @@
 package demographicLanguageParser;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Rate parameter.
@@ -73,14 +74,31 @@ public class Rate extends Parameter {
      * @param m the migration matrix
      */
     public void addMatrix(MigrationMatrix m) {
-        getMatricesAppearsIn().add(m);
+        if (!getMatricesAppearsIn().contains(m)) {
+            getMatricesAppearsIn().add(m);
+        }
     }
 
     /**
-     * Try to update a parameter
+     * Try to update a parameter. The value is unchanged if a constraint is violated.
      * @return 0 if parameter updated, 1 if range violated, 2 if conservation violated, 3 if migration violated
      */
-    public int tryUpdate(double increment) {
+    public int tryUpdate(double increment, HashMap<Parameter, Double> changed) {
+        double oldValue = getValue();
+        double newValue = oldValue + increment;
+        if (isConstant || newValue < getMin() || newValue > getMax()) {
+            return 1;
+        }
+        setValue(newValue);
+        for (MigrationMatrix m : getMatricesAppearsIn()) {
+            if (!m.hasValidRows()) {
+                setValue(oldValue);
+                return 3;
+            }
+        }
+        if (!changed.containsKey(this)) {
+            changed.put(this, oldValue);
+        }
         return 0;
     }
 
@@ -0,0 +1,311 @@
+package demographicLanguageParser;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of query results, kept in a local file so that results are reused across runs.
+ * Results are keyed by the canonical hash of the model (see DemographicLanguageParser.getCanonicalHash),
+ * the quantity requested and the settings of the computation. Records are appended to the file and read
+ * through a memory mapping. When the file would grow beyond its maximum size, it is rewritten with the
+ * most recently used records only, up to half the maximum size.
+ * The file must not be used by more than one cache at a time.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class ResultCache {
+
+    // start of each record
+    static final int RECORD_MAGIC = 0x444C5243;
+    // size of keys (SHA-256)
+    static final int KEY_SIZE = 32;
+    // magic, number of populations and key
+    static final int HEADER_SIZE = 8 + KEY_SIZE;
+    // the cache file
+    private File file;
+    // largest size of the file
+    private long maxBytes;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    // read only mapping of the file, extended to the appended records when one of them is read
+    private MappedByteBuffer mapped = null;
+    // offset of the record of each key, least recently used first
+    private LinkedHashMap<ByteBuffer, Long> index = new LinkedHashMap<ByteBuffer, Long>(16, 0.75f, true);
+    // end of the last record
+    private long size = 0;
+    // number of results found and not found
+    private long hits = 0, misses = 0;
+
+    /**
+     * Opens a cache, creating its file if needed. Records that were not completely written are dropped.
+     * @param filename the file
+     * @param maxBytes largest size of the file (at most 2GB)
+     */
+    public ResultCache(String filename, long maxBytes) throws Exception {
+        if (maxBytes > Integer.MAX_VALUE) {
+            throw new Exception("Cache size can be at most " + Integer.MAX_VALUE + " bytes.");
+        }
+        this.file = new File(filename);
+        this.maxBytes = maxBytes;
+        open();
+    }
+
+    // opens the file and indexes its records
+    private void open() throws Exception {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long length = channel.size();
+        mapped = null;
+        size = 0;
+        index.clear();
+        if (length > 0) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, Integer.MAX_VALUE));
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            while (size + HEADER_SIZE <= mapped.capacity()) {
+                int pos = (int) size;
+                if (mapped.getInt(pos) != RECORD_MAGIC) {
+                    break;
+                }
+                int numPops = mapped.getInt(pos + 4);
+                long recordSize = getRecordSize(numPops);
+                if (numPops <= 0 || size + recordSize > mapped.capacity()) {
+                    break;
+                }
+                byte[] key = new byte[KEY_SIZE];
+                for (int i = 0; i < KEY_SIZE; i++) {
+                    key[i] = mapped.get(pos + 8 + i);
+                }
+                index.put(ByteBuffer.wrap(key), size);
+                size += recordSize;
+            }
+            if (size < length) {
+                // drop an incomplete record, left by an interrupted write
+                channel.truncate(size);
+            }
+        }
+    }
+
+    // size of a record with results for some populations
+    private static long getRecordSize(int numPops) {
+        return HEADER_SIZE + 8L * Matrix.getPackedSize(numPops);
+    }
+
+    /**
+     * Compute several quantities (see DemographicLanguageParser.computeModelQuantities), only computing
+     * and storing those that are not in the cache
+     * @param model the model, with its current matrices
+     * @param requests array of quantity requests (type and arguments)
+     * @return array with one symmetric matrix per request, in the same order
+     */
+    public synchronized Matrix[] computeModelQuantities(DemographicLanguageParser model, DemographicLanguageParser.QuantityRequest[] requests) throws Exception {
+        String modelHash = model.getCanonicalHash();
+        Matrix[] results = new Matrix[requests.length];
+        byte[][] keys = new byte[requests.length][];
+        ArrayList<Integer> missing = new ArrayList<Integer>();
+        for (int q = 0; q < requests.length; q++) {
+            keys[q] = getKey(modelHash, model, requests[q]);
+            results[q] = get(keys[q]);
+            if (results[q] == null) {
+                missing.add(q);
+            }
+        }
+        hits += requests.length - missing.size();
+        misses += missing.size();
+        if (missing.isEmpty()) {
+            return results;
+        }
+        DemographicLanguageParser.QuantityRequest[] toCompute = new DemographicLanguageParser.QuantityRequest[missing.size()];
+        for (int i = 0; i < toCompute.length; i++) {
+            toCompute[i] = requests[missing.get(i)];
+        }
+        Matrix[] computed = model.computeModelQuantities(toCompute);
+        for (int i = 0; i < toCompute.length; i++) {
+            results[missing.get(i)] = computed[i];
+            put(keys[missing.get(i)], computed[i]);
+        }
+        return results;
+    }
+
+    /**
+     * Computes the key of a request: a hash of the model hash, the quantity, its arguments and the settings
+     * of the model that change results (accumulation mode, adaptive and truncation tolerances)
+     * @param modelHash canonical hash of the model
+     * @param model the model
+     * @param request the request
+     * @return the key
+     */
+    static byte[] getKey(String modelHash, DemographicLanguageParser model, DemographicLanguageParser.QuantityRequest request) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(modelHash.getBytes(StandardCharsets.US_ASCII));
+        double[] args = request.getArgs();
+        ByteBuffer buffer = ByteBuffer.allocate(8 * (args.length + 5));
+        buffer.putInt(request.getType().ordinal()).putInt(args.length);
+        for (double a : args) {
+            buffer.putDouble(a);
+        }
+        buffer.putInt(model.getAccumulationMode().ordinal()).putInt(0);
+        buffer.putDouble(model.getAdaptiveTolerance()).putDouble(model.getTruncationTolerance());
+        digest.update(buffer.array(), 0, buffer.position());
+        return digest.digest();
+    }
+
+    /**
+     * returns a result
+     * @param key the key (see getKey)
+     * @return the result, or null if not in the cache
+     */
+    synchronized Matrix get(byte[] key) throws Exception {
+        Long offset = index.get(ByteBuffer.wrap(key));
+        if (offset == null) {
+            return null;
+        }
+        int pos = offset.intValue();
+        if (mapped == null || pos >= mapped.capacity()) {
+            // appended after the file was last mapped
+            remap();
+        }
+        int numPops = mapped.getInt(pos + 4);
+        double[] packed = new double[Matrix.getPackedSize(numPops)];
+        for (int p = 0; p < packed.length; p++) {
+            packed[p] = mapped.getDouble(pos + HEADER_SIZE + 8 * p);
+        }
+        return Matrix.fromPacked(packed, numPops);
+    }
+
+    /**
+     * stores a result, evicting least recently used results if the file would grow too large
+     * @param key the key (see getKey)
+     * @param result the result
+     */
+    synchronized void put(byte[] key, Matrix result) throws Exception {
+        if (index.containsKey(ByteBuffer.wrap(key))) {
+            return;
+        }
+        int numPops = result.getNumRows();
+        long recordSize = getRecordSize(numPops);
+        if (recordSize > maxBytes / 2) {
+            // would not survive the next eviction
+            return;
+        }
+        if (size + recordSize > maxBytes) {
+            evict();
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) recordSize).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(RECORD_MAGIC).putInt(numPops).put(key);
+        for (double v : result.getPacked()) {
+            record.putDouble(v);
+        }
+        append(record, key);
+    }
+
+    // writes a record at the end of the file, which is mapped when a record past the mapping is read
+    private void append(ByteBuffer record, byte[] key) throws Exception {
+        record.flip();
+        long pos = size;
+        while (record.hasRemaining()) {
+            pos += channel.write(record, pos);
+        }
+        index.put(ByteBuffer.wrap(key.clone()), size);
+        size = pos;
+    }
+
+    // maps all records, records are never split across the end of a mapping
+    private void remap() throws Exception {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // rewrites the file with the most recently used records, up to half the maximum size
+    private void evict() throws Exception {
+        if (mapped == null || mapped.capacity() < size) {
+            remap();
+        }
+        ArrayList<Map.Entry<ByteBuffer, Long>> entries = new ArrayList<Map.Entry<ByteBuffer, Long>>(index.entrySet());
+        long kept = 0;
+        int first = entries.size();
+        while (first > 0) {
+            long recordSize = getRecordSize(mapped.getInt(entries.get(first - 1).getValue().intValue() + 4));
+            if (kept + recordSize > maxBytes / 2) {
+                break;
+            }
+            kept += recordSize;
+            first--;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            FileChannel outChannel = out.getChannel();
+            // least recently used first, so that the order of records is kept when the file is opened again
+            for (int e = first; e < entries.size(); e++) {
+                int pos = entries.get(e).getValue().intValue();
+                ByteBuffer record = mapped.duplicate();
+                record.position(pos);
+                record.limit(pos + (int) getRecordSize(mapped.getInt(pos + 4)));
+                while (record.hasRemaining()) {
+                    outChannel.write(record);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        raf.close();
+        if (!tmp.renameTo(file)) {
+            throw new Exception("Could not replace " + file.getPath() + " with " + tmp.getPath() + ".");
+        }
+        open();
+    }
+
+    /**
+     * Removes all results
+     */
+    public synchronized void clear() throws Exception {
+        channel.truncate(0);
+        index.clear();
+        size = 0;
+        mapped = null;
+    }
+
+    /**
+     * Closes the file
+     */
+    public synchronized void close() throws Exception {
+        raf.close();
+    }
+
+    /**
+     * @return the number of results in the cache
+     */
+    public synchronized int getNumResults() {
+        return index.size();
+    }
+
+    /**
+     * @return the size of the cache file
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of results found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of results that were not in the cache
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,257 @@
+package demographicLanguageParser;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Maps samples to populations at generation 0, for large cohorts. Sample names are dictionary encoded:
+ * each sample gets an integer id, names are stored as bytes in a single array and found with an open
+ * addressing table, without creating objects per sample or per lookup. The population of each sample
+ * is a short, and the packed index of a pair of samples is looked up by the pair of their populations.
+ * Besides its name, a sample takes 2 bytes for its population, 4 for the offset of its name and about
+ * 5 for the table, which is 3/4 full once all samples are loaded.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public class SampleIndex {
+
+    // names of all samples, concatenated
+    private byte[] names;
+    // start of the name of each sample in names, and end of the last one
+    private int[] nameOffsets;
+    // open addressing table of sample ids + 1, 0 for empty slots
+    private int[] table;
+    // number of samples
+    private int numSamples;
+    // population of each sample (index in popsAt0)
+    private short[] populations;
+    // names of populations at generation 0
+    private String[] popNames;
+    // packed index of each pair of populations, numPops * pop1 + pop2
+    private int[] pairIndex;
+    // number of samples in each population
+    private long[] popSizes;
+
+    /**
+     * Loads the population of each sample, one "sample population" pair per line. Lines starting with "#" are ignored.
+     * @param filename the file
+     * @param popsAt0 populations at generation 0 (see DemographicLanguageParser.getPopsAt0())
+     * @throws Exception
+     */
+    public SampleIndex(String filename, Edge[] popsAt0) throws Exception {
+        if (popsAt0.length > Short.MAX_VALUE) {
+            throw new Exception("Too many populations at generation 0.");
+        }
+        int numPops = popsAt0.length;
+        popNames = new String[numPops];
+        HashMap<String, Integer> popIndex = new HashMap<String, Integer>();
+        for (int i = 0; i < numPops; i++) {
+            popNames[i] = popsAt0[i].getId();
+            popIndex.put(popNames[i], i);
+        }
+        pairIndex = new int[numPops * numPops];
+        for (int i = 0; i < numPops; i++) {
+            for (int j = 0; j < numPops; j++) {
+                pairIndex[i * numPops + j] = (i <= j) ? Matrix.packedIndex(i, j, numPops) : Matrix.packedIndex(j, i, numPops);
+            }
+        }
+        popSizes = new long[numPops];
+        names = new byte[1 << 16];
+        nameOffsets = new int[1024];
+        populations = new short[1024];
+        table = new int[2048];
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        String str;
+        int lineNumber = 0;
+        try {
+            while ((str = in.readLine()) != null) {
+                lineNumber++;
+                str = str.trim();
+                if (str.length() == 0 || str.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = str.split("\\s+");
+                if (fields.length != 2) {
+                    throw new Exception("Line " + lineNumber + " of " + filename + " has " + fields.length
+                            + " fields. Expecting 2 (sample, population).");
+                }
+                if (!popIndex.containsKey(fields[1])) {
+                    throw new Exception(fields[1] + " is not a population at generation 0.");
+                }
+                byte[] name = fields[0].getBytes(StandardCharsets.ISO_8859_1);
+                if (getSampleId(name) != -1) {
+                    throw new Exception("Sample " + fields[0] + " appears more than once in " + filename + ".");
+                }
+                addSample(name, popIndex.get(fields[1]));
+            }
+        } finally {
+            in.close();
+        }
+        // drop space reserved for more samples
+        byte[] trimmedNames = new byte[nameOffsets[numSamples]];
+        System.arraycopy(names, 0, trimmedNames, 0, trimmedNames.length);
+        names = trimmedNames;
+        int[] trimmedOffsets = new int[numSamples + 1];
+        System.arraycopy(nameOffsets, 0, trimmedOffsets, 0, numSamples + 1);
+        nameOffsets = trimmedOffsets;
+        short[] trimmedPops = new short[numSamples];
+        System.arraycopy(populations, 0, trimmedPops, 0, numSamples);
+        populations = trimmedPops;
+        rehash(numSamples + numSamples / 3 + 1);
+    }
+
+    // adds a new sample, growing arrays as needed
+    private void addSample(byte[] name, int pop) {
+        if (numSamples + 1 >= nameOffsets.length) {
+            int[] offsets = new int[nameOffsets.length * 2];
+            System.arraycopy(nameOffsets, 0, offsets, 0, nameOffsets.length);
+            nameOffsets = offsets;
+            short[] pops = new short[populations.length * 2];
+            System.arraycopy(populations, 0, pops, 0, populations.length);
+            populations = pops;
+        }
+        int start = nameOffsets[numSamples];
+        if (start + name.length > names.length) {
+            byte[] newNames = new byte[Math.max(names.length * 2, start + name.length)];
+            System.arraycopy(names, 0, newNames, 0, start);
+            names = newNames;
+        }
+        System.arraycopy(name, 0, names, start, name.length);
+        nameOffsets[numSamples + 1] = start + name.length;
+        populations[numSamples] = (short) pop;
+        popSizes[pop]++;
+        numSamples++;
+        // keep the table at most 3/4 full
+        if (4L * numSamples > 3L * table.length) {
+            rehash(table.length * 2);
+        } else {
+            insert(numSamples - 1);
+        }
+    }
+
+    // puts all samples in a new table of a given size
+    private void rehash(int size) {
+        table = new int[size];
+        for (int s = 0; s < numSamples; s++) {
+            insert(s);
+        }
+    }
+
+    // reduces a hash to a slot of the table, whose size is not a power of 2, with a multiplication
+    private int slotOf(int h) {
+        return (int) (((h & 0xFFFFFFFFL) * table.length) >>> 32);
+    }
+
+    // puts a sample in the table
+    private void insert(int sample) {
+        int h = 0x811C9DC5;
+        for (int i = nameOffsets[sample]; i < nameOffsets[sample + 1]; i++) {
+            h = (h ^ (names[i] & 0xFF)) * 0x01000193;
+        }
+        int slot = slotOf(h);
+        while (table[slot] != 0) {
+            slot = (slot + 1 == table.length) ? 0 : slot + 1;
+        }
+        table[slot] = sample + 1;
+    }
+
+    /**
+     * returns the id of a sample
+     * @param name the name, as bytes
+     * @return the id, or -1 if the sample is unknown
+     */
+    public int getSampleId(byte[] name) {
+        return getSampleId(ByteBuffer.wrap(name), 0, name.length);
+    }
+
+    /**
+     * returns the id of a sample, given its name
+     * @param name the name
+     * @return the id, or -1 if the sample is unknown
+     */
+    public int getSampleId(String name) {
+        return getSampleId(name.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * returns the id of a sample whose name is in a buffer, without copying it
+     * @param buffer the buffer
+     * @param from first byte of the name
+     * @param to end of the name (excluded)
+     * @return the id, or -1 if the sample is unknown
+     */
+    public int getSampleId(ByteBuffer buffer, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (buffer.get(i) & 0xFF)) * 0x01000193;
+        }
+        int slot = slotOf(h);
+        int length = to - from;
+        while (table[slot] != 0) {
+            int sample = table[slot] - 1;
+            int start = nameOffsets[sample];
+            if (nameOffsets[sample + 1] - start == length) {
+                int i = 0;
+                while (i < length && names[start + i] == buffer.get(from + i)) {
+                    i++;
+                }
+                if (i == length) {
+                    return sample;
+                }
+            }
+            slot = (slot + 1 == table.length) ? 0 : slot + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * returns the name of a sample
+     * @param sample the id
+     * @return the name
+     */
+    public String getSampleName(int sample) {
+        return new String(names, nameOffsets[sample], nameOffsets[sample + 1] - nameOffsets[sample], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * returns the population of a sample
+     * @param sample the id
+     * @return index of the population in popsAt0
+     */
+    public int getPopulation(int sample) {
+        return populations[sample];
+    }
+
+    /**
+     * returns the packed index (see Matrix.packedIndex) of the pair of populations of two samples
+     * @param sample1 id of the first sample
+     * @param sample2 id of the second sample
+     * @return the index
+     */
+    public int getPairIndex(int sample1, int sample2) {
+        return pairIndex[populations[sample1] * popNames.length + populations[sample2]];
+    }
+
+    /**
+     * @return the number of samples
+     */
+    public int getNumSamples() {
+        return numSamples;
+    }
+
+    /**
+     * @return the number of samples in each population
+     */
+    public long[] getPopSizes() {
+        return popSizes.clone();
+    }
+
+    /**
+     * @return the names of populations at generation 0
+     */
+    public String[] getPopNames() {
+        return popNames.clone();
+    }
+}
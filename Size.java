@@ -1,5 +1,8 @@
 package demographicLanguageParser;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * Size parameter.
  * @author Pier Palamara <pier@cs.columbia.edu>
@@ -23,6 +26,8 @@ public class Size extends Parameter {
     private Double min = 0.0;
     private Double max = Double.POSITIVE_INFINITY;
     private static int created = 0;
+    // nodes this size appears in, to keep track of conservation constraints
+    private ArrayList<Node> nodesAppearsIn = new ArrayList<Node>();
 
     /**
      * Constructor
@@ -35,10 +40,61 @@ public class Size extends Parameter {
     }
 
     /**
-     * Try to update a parameter
+     * add a node this size appears in, to keep track of constraints
+     * @param n the node
+     */
+    public void addNode(Node n) {
+        if (!getNodesAppearsIn().contains(n)) {
+            getNodesAppearsIn().add(n);
+        }
+    }
+
+    /**
+     * Try to update a parameter. If the size is in a conserved node, the free pivots of the node are changed
+     * to restore conservation, and are recorded in changed. Values are unchanged if a constraint is violated.
      * @return 0 if parameter updated, 1 if range violated, 2 if conservation violated, 3 if migration violated
      */
-    public int tryUpdate(double increment) {
+    public int tryUpdate(double increment, HashMap<Parameter, Double> changed) {
+        double oldValue = getValue();
+        double newValue = oldValue + increment;
+        if (isConstant || newValue < getMin() || newValue > getMax()) {
+            return 1;
+        }
+        // this size and the pivots changed to restore conservation, with their previous values
+        HashMap<Parameter, Double> updated = new HashMap<Parameter, Double>();
+        updated.put(this, oldValue);
+        setValue(newValue);
+        boolean conserved = true;
+        for (Node n : getNodesAppearsIn()) {
+            if (n.isConservation() && !n.isConserved() && !n.rebalancePivots(this, updated)) {
+                conserved = false;
+                break;
+            }
+        }
+        // changed pivots must be in range, and all nodes they appear in must still be conserved
+        for (Parameter p : updated.keySet()) {
+            if (!conserved) {
+                break;
+            }
+            Size s = (Size) p;
+            if (s.getValue() < s.getMin() || s.getValue() > s.getMax()) {
+                conserved = false;
+            }
+            for (Node n : s.getNodesAppearsIn()) {
+                if (n.isConservation() && !n.isConserved()) {
+                    conserved = false;
+                }
+            }
+        }
+        if (!conserved) {
+            restore(updated);
+            return 2;
+        }
+        for (Parameter p : updated.keySet()) {
+            if (!changed.containsKey(p)) {
+                changed.put(p, updated.get(p));
+            }
+        }
         return 0;
     }
 
@@ -70,4 +126,17 @@ public class Size extends Parameter {
         this.max = max;
     }
 
+    /**
+     * @return the nodesAppearsIn
+     */
+    public ArrayList<Node> getNodesAppearsIn() {
+        return nodesAppearsIn;
+    }
+
+    /**
+     * @param nodesAppearsIn the nodesAppearsIn to set
+     */
+    public void setNodesAppearsIn(ArrayList<Node> nodesAppearsIn) {
+        this.nodesAppearsIn = nodesAppearsIn;
+    }
 }
@@ -1,6 +1,7 @@
 package demographicLanguageParser;
 
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class holds a period of time, with all the information required to compute
@@ -32,40 +33,103 @@ public class TimeFrame {
     }
 
     public Matrix[] computeCoalescenceVector(Matrix initialState) throws Exception {
-        if (DemographicLanguageParser.debugIsOn()) {
-            System.out.println("Start of " + intStart + " " + intEnd);
+        double[][] packed = computePackedCoalescenceVector(initialState);
+        Matrix[] coalescence = new Matrix[packed.length];
+        for (int g = 0; g < packed.length; g++) {
+            coalescence[g] = Matrix.fromPacked(packed[g], initialState.getMat().length);
         }
-        Matrix[] coalescence = new Matrix[intEnd - intStart];
+        return coalescence;
+    }
+
+    /**
+     * Computes the probability of coalescence for each generation of the frame and updates the state.
+     * Matrices are symmetric and are returned as packed upper triangles (see Matrix.packedIndex).
+     * @param initialState state at the beginning of the frame, updated to the end of the frame
+     * @return one packed matrix per generation
+     */
+    public double[][] computePackedCoalescenceVector(Matrix initialState) throws Exception {
+        return computePackedCoalescenceVector(initialState, null);
+    }
+
+    /**
+     * Computes the probability of coalescence for each generation of the frame and updates the state.
+     * If a pool is given, rows of large matrices are computed in parallel within each generation.
+     * @param initialState state at the beginning of the frame, updated to the end of the frame
+     * @param pool thread pool used by matrix kernels, null for sequential computation
+     * @return one packed matrix per generation
+     */
+    public double[][] computePackedCoalescenceVector(Matrix initialState, ForkJoinPool pool) throws Exception {
+        return computePackedCoalescenceVector(initialState, pool, 0, intEnd - intStart);
+    }
+
+    /**
+     * Computes the probability of coalescence for some consecutive generations of the frame and updates
+     * the state, so that a frame can be computed in chunks and abandoned before its end.
+     * @param initialState state after the first generations of the frame, updated to the end of the chunk
+     * @param pool thread pool used by matrix kernels, null for sequential computation
+     * @param first number of generations of the frame already computed
+     * @param count number of generations to be computed
+     * @return one packed matrix per generation of the chunk
+     */
+    public double[][] computePackedCoalescenceVector(Matrix initialState, ForkJoinPool pool, int first, int count) throws Exception {
+        return computePackedCoalescenceVector(initialState, pool, first, count, null);
+    }
+
+    /**
+     * Computes the probability of coalescence for some consecutive generations of the frame and updates
+     * the state, sending population sizes and applied transitions to a trace listener.
+     * @param initialState state after the first generations of the frame, updated to the end of the chunk
+     * @param pool thread pool used by matrix kernels, null for sequential computation
+     * @param first number of generations of the frame already computed
+     * @param count number of generations to be computed
+     * @param trace the listener, null if events are not traced
+     * @return one packed matrix per generation of the chunk
+     */
+    public double[][] computePackedCoalescenceVector(Matrix initialState, ForkJoinPool pool, int first, int count, TraceListener trace) throws Exception {
+        int length = intEnd - intStart;
+        count = Math.min(count, length - first);
+        double[][] coalescence = new double[count][];
         Edge[] populations = migration.populationsFrom;
         Double[] sizes = new Double[populations.length];
-        for (int g = 1; g <= (intEnd - intStart) - 1; g++) {
-            initialState.multiplyMatrices(migration.getMigMatrix());
+        // work on primitive copies of the state and migration matrix for the whole chunk
+        double[][] state = Matrix.toPrimitive(initialState.getMat());
+        double[][] migMat = Matrix.toPrimitive(migration.getMigMatrix().getMat());
+        for (int g = first + 1; g <= Math.min(first + count, length - 1); g++) {
+            state = Matrix.multiply(state, migMat, pool);
             for (int i = 0; i < populations.length; i++) {
                 sizes[i] = populations[i].getSizeAt(intStart + g);
-                if (DemographicLanguageParser.debugIsOn()) {
-                    System.out.println("gen " + (intStart + g) + " pop " + populations[i].getId() + " size " + sizes[i]);
-                }
             }
-            coalescence[g - 1] = Matrix.multiplyDiagSelf(initialState, sizes);
+            if (trace != null) {
+                trace.generationSizes(intStart + g, populations, sizes);
+            }
+            coalescence[g - first - 1] = Matrix.multiplyDiagSelfPacked(state, sizes, pool);
+        }
+        if (first + count < length) {
+            initialState.setMat(Matrix.toBoxed(state));
+            return coalescence;
         }
-        initialState.multiplyMatrices(migration.getMigMatrix());
+        state = Matrix.multiply(state, migMat, pool);
         for (int i = 0; i < populations.length; i++) {
             sizes[i] = populations[i].getSizeAt(Gend.getValue());
         }
         if (transitions != null) {
             for (int i = 0; i < transitions.size(); i++) {
-                initialState.multiplyMatrices(transitions.get(i).migMat);
+                state = Matrix.multiply(state, Matrix.toPrimitive(transitions.get(i).migMat.getMat()), pool);
+                if (trace != null) {
+                    trace.transitionApplied(intEnd, transitions.get(i));
+                }
             }
             populations = transitions.get(transitions.size() - 1).populationsTo;
             sizes = new Double[populations.length];
             for (int i = 0; i < populations.length; i++) {
                 sizes[i] = populations[i].getSizeAt(intEnd);
-                if (DemographicLanguageParser.debugIsOn()) {
-                    System.out.println("gen " + (intEnd) + " pop " + populations[i].getId() + " size " + sizes[i]);
-                }
             }
         }
-        coalescence[(intEnd - intStart) - 1] = Matrix.multiplyDiagSelf(initialState, sizes);
+        if (trace != null) {
+            trace.generationSizes(intEnd, populations, sizes);
+        }
+        initialState.setMat(Matrix.toBoxed(state));
+        coalescence[count - 1] = Matrix.multiplyDiagSelfPacked(state, sizes, pool);
         return coalescence;
     }
 }
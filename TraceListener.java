@@ -0,0 +1,64 @@
+package demographicLanguageParser;
+
+/**
+ * Receives typed events while a model builds its matrices and computes quantities (see
+ * DemographicLanguageParser.setTraceListener). Events are only built when a listener is attached:
+ * without one, computations only test a local reference against null.
+ * Arrays and matrices passed to the listener are owned by the caller and must not be modified or kept.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+public interface TraceListener {
+
+    /**
+     * a transition matrix was built
+     * @param generation generation of the transition
+     * @param transition the matrix
+     * @param instantaneous true if the transition comes from instantaneous edges
+     */
+    void transitionBuilt(int generation, MigrationMatrix transition, boolean instantaneous);
+
+    /**
+     * a time frame and its migration matrix were built
+     * @param index index of the frame
+     * @param frame the frame
+     */
+    void frameBuilt(int index, TimeFrame frame);
+
+    /**
+     * computation of a time frame starts
+     * @param index index of the frame
+     * @param frame the frame
+     */
+    void frameStart(int index, TimeFrame frame);
+
+    /**
+     * sizes of populations used at a generation
+     * @param generation the generation
+     * @param populations the populations
+     * @param sizes the size of each population
+     */
+    void generationSizes(int generation, Edge[] populations, Double[] sizes);
+
+    /**
+     * a transition matrix was applied to the state
+     * @param generation generation of the transition
+     * @param transition the matrix
+     */
+    void transitionApplied(int generation, MigrationMatrix transition);
+
+    /**
+     * probability of coalescing at a generation, for each pair of populations at generation 0
+     * @param generation the generation
+     * @param newCoal packed probabilities (see Matrix.packedIndex)
+     */
+    void generationCoalescence(int generation, double[] newCoal);
+
+    /**
+     * computation of a time frame ends
+     * @param index index of the frame
+     * @param generation last generation computed
+     * @param state the state
+     * @param probCoal packed probability of having coalesced by the last generation
+     */
+    void frameEnd(int index, int generation, Matrix state, double[] probCoal);
+}
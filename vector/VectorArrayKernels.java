@@ -0,0 +1,119 @@
+package demographicLanguageParser;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of ArrayKernels with the jdk.incubator.vector module (JDK 16 or later). It is kept out of the
+ * main sources, so that they compile without the module, and is loaded by ArrayKernels when available.
+ * To compile it, after the main sources:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp out -d out vector/VectorArrayKernels.java
+ *
+ * and to use it, run java with --add-modules jdk.incubator.vector.
+ * @author Pier Palamara <pier@cs.columbia.edu>
+ */
+class VectorArrayKernels extends ArrayKernels {
+
+    // widest vectors supported by the CPU
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // offsets of the lanes of a vector (0, 1, 2, ...), used to compute the generations of a table
+    private static final DoubleVector LANES;
+
+    static {
+        double[] lanes = new double[SPECIES.length()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = i;
+        }
+        LANES = DoubleVector.fromArray(SPECIES, lanes, 0);
+    }
+
+    VectorArrayKernels() {
+    }
+
+    @Override
+    boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    void fillFractionFactors(double u, double v, int firstGen, double[] factors) {
+        int j = 0;
+        int upper = SPECIES.loopBound(factors.length);
+        for (; j < upper; j += SPECIES.length()) {
+            DoubleVector g = LANES.add(firstGen + j);
+            DoubleVector gu = g.mul(u);
+            DoubleVector gv = g.mul(v);
+            DoubleVector a = gu.div(-50.).lanewise(VectorOperators.EXP).mul(gu.add(50.));
+            DoubleVector b = gv.div(-50.).lanewise(VectorOperators.EXP).mul(gv.add(50.));
+            a.sub(b).mul(1. / 50.).intoArray(factors, j);
+        }
+        for (; j < factors.length; j++) {
+            int g = firstGen + j;
+            factors[j] = 1. / 50. * (Math.exp(-g * u / 50.) * (50. + g * u)
+                    - Math.exp(-g * v / 50.) * (50. + g * v));
+        }
+    }
+
+    @Override
+    void fillSegmentFactors(double u, double v, double G, int firstGen, double[] factors) {
+        int j = 0;
+        int upper = SPECIES.loopBound(factors.length);
+        for (; j < upper; j += SPECIES.length()) {
+            DoubleVector g = LANES.add(firstGen + j);
+            DoubleVector a = g.mul(-2 * u).lanewise(VectorOperators.EXP);
+            DoubleVector b = g.mul(-2 * v).lanewise(VectorOperators.EXP);
+            a.sub(b).mul(2.).mul(G).mul(g).intoArray(factors, j);
+        }
+        for (; j < factors.length; j++) {
+            int g = firstGen + j;
+            factors[j] = 2 * (Math.exp(-2 * g * u) - Math.exp(-2 * g * v)) * G * g;
+        }
+    }
+
+    @Override
+    void updateCoalescence(double[] coal, double[] probCoal, double[] probNotCoal, double[] newCoal, int n) {
+        int p = 0;
+        int upper = SPECIES.loopBound(n);
+        for (; p < upper; p += SPECIES.length()) {
+            DoubleVector c = DoubleVector.fromArray(SPECIES, coal, p).mul(DoubleVector.fromArray(SPECIES, probNotCoal, p));
+            c.intoArray(newCoal, p);
+            DoubleVector pc = DoubleVector.fromArray(SPECIES, probCoal, p).add(c);
+            pc.intoArray(probCoal, p);
+            pc.neg().add(1.0).intoArray(probNotCoal, p);
+        }
+        for (; p < n; p++) {
+            newCoal[p] = coal[p] * probNotCoal[p];
+            probCoal[p] += newCoal[p];
+            probNotCoal[p] = 1.0 - probCoal[p];
+        }
+    }
+
+    @Override
+    void axpy(double a, double[] x, double[] y, int from, int to) {
+        int i = from;
+        int upper = from + SPECIES.loopBound(to - from);
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, y, i).add(DoubleVector.fromArray(SPECIES, x, i).mul(a)).intoArray(y, i);
+        }
+        for (; i < to; i++) {
+            y[i] += a * x[i];
+        }
+    }
+
+    @Override
+    double dot(double[] x, double[] y, int n) {
+        int k = 0;
+        int upper = SPECIES.loopBound(n);
+        DoubleVector acc = DoubleVector.zero(SPECIES);
+        for (; k < upper; k += SPECIES.length()) {
+            acc = DoubleVector.fromArray(SPECIES, x, k).mul(DoubleVector.fromArray(SPECIES, y, k)).add(acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; k < n; k++) {
+            sum += x[k] * y[k];
+        }
+        return sum;
+    }
+}